@@ -0,0 +1,134 @@
+package com.lotame.android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Ingestion throughput of the queue behind add(), addBehavior() and
+ * addOpportunity(), with several producers, alone and while a sender drains.
+ *
+ * Producers alone each make a fixed number of offers per iteration into a
+ * fresh queue with room for all of them, so no offer evicts.  Paired with a
+ * sender, producers wait for room rather than evict, so the pair measures
+ * sustained throughput.
+ */
+public class AtomQueueBenchmark {
+    private static final int PRODUCERS = 4;
+    /**
+     * Offers made by each producer per iteration
+     */
+    private static final int BATCH = 1 << 18;
+    private static final int PAIRED_CAPACITY = 8192;
+
+    @State(Scope.Benchmark)
+    public static class Producers {
+        AtomQueue queue;
+        AtomParameter atom;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            queue = new AtomQueue(PRODUCERS * BATCH, CrowdControl.OverflowPolicy.DROP_OLDEST);
+            atom = new AtomParameter("b", "12345");
+        }
+    }
+
+    @State(Scope.Group)
+    public static class Paired {
+        AtomQueue queue;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            queue = new AtomQueue(PAIRED_CAPACITY, CrowdControl.OverflowPolicy.DROP_NEWEST);
+        }
+    }
+
+    @Benchmark
+    @Threads(PRODUCERS)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(batchSize = BATCH)
+    @Measurement(batchSize = BATCH)
+    public boolean offerBehavior(Producers state) {
+        return state.queue.offerBehavior(12345);
+    }
+
+    @Benchmark
+    @Threads(PRODUCERS)
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(batchSize = BATCH)
+    @Measurement(batchSize = BATCH)
+    public boolean offerAtom(Producers state) {
+        return state.queue.offer(state.atom);
+    }
+
+    @Benchmark
+    @Group("produceAndDrain")
+    @GroupThreads(3)
+    public boolean produce(Paired state, Control control) {
+        // Wait for the sender to make room instead of evicting
+        while (state.queue.size() >= PAIRED_CAPACITY) {
+            if (control.stopMeasurement) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return state.queue.offerBehavior(12345);
+    }
+
+    @Benchmark
+    @Group("produceAndDrain")
+    @GroupThreads(1)
+    public void drain(Paired state, final Blackhole blackhole) {
+        state.queue.drain(256, new AtomQueue.Sink() {
+            @Override
+            public void onAtom(AtomParameter atom) {
+                blackhole.consume(atom);
+            }
+
+            @Override
+            public void onBehavior(long id) {
+                blackhole.consume(id);
+            }
+
+            @Override
+            public void onOpportunity(long id) {
+                blackhole.consume(id);
+            }
+        });
+    }
+}
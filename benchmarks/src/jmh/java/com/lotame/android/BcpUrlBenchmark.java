@@ -0,0 +1,77 @@
+package com.lotame.android;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Latency of draining a queue of the given size into the parameters of a
+ * bcp url, with the writer bcp() builds its requests with.  Each invocation
+ * queues the atoms again before draining them; queuing is allocation free
+ * and a small share of the time.
+ */
+@State(Scope.Thread)
+public class BcpUrlBenchmark {
+    /**
+     * Long enough that the parameters fit in a single chunk
+     */
+    private static final int MAX_CHUNK_LENGTH = Integer.MAX_VALUE;
+
+    @Param({"10", "100", "1000"})
+    public int queueSize;
+
+    private AtomQueue queue;
+    private AtomParameter[] atoms;
+    private final CrowdControl.BcpUrlWriter writer = new CrowdControl.BcpUrlWriter();
+
+    @Setup
+    public void setUp() {
+        queue = new AtomQueue(queueSize, CrowdControl.OverflowPolicy.DROP_OLDEST);
+        atoms = new AtomParameter[queueSize];
+        for (int i = 0; i < queueSize; i += 4) {
+            atoms[i] = new AtomParameter("seg", "sports & outdoors/" + i);
+        }
+    }
+
+    @Benchmark
+    public List<String> buildUrl() {
+        for (int i = 0; i < queueSize; i++) {
+            if (atoms[i] != null) {
+                queue.offer(atoms[i]);
+            } else {
+                queue.offerBehavior(i);
+            }
+        }
+        writer.reset(MAX_CHUNK_LENGTH);
+        queue.drain(queue.size(), writer);
+        return writer.chunks(false);
+    }
+}
@@ -0,0 +1,233 @@
+package com.lotame.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Bounded, lock-free queue of the atoms waiting to be transmitted.
+ *
+ * Behavior and placement ids, which make up most of the traffic, are stored
+ * unboxed in parallel primitive arrays and only turned into text when the
+ * queue is drained, so queueing them allocates nothing.  Any other key/value
+ * pair is stored as an {@link AtomParameter}.
+ *
+ * This is a ring buffer in which every slot carries a sequence number that
+ * tells producers and consumers whether the slot is free or filled for the
+ * current lap, so that any number of threads can add while a flush drains
+ * the queue without taking a lock.  What happens when the queue is full is
+ * decided by the {@link CrowdControl.OverflowPolicy} it was created with;
+ * every atom that is discarded is counted.
+ */
+class AtomQueue {
+    private static final long BLOCK_PARK_NANOS = 100 * 1000;
+
+    private static final byte KIND_ATOM = 0;
+    private static final byte KIND_BEHAVIOR = 1;
+    private static final byte KIND_OPPORTUNITY = 2;
+
+    /**
+     * Receives the drained atoms, in queue order.
+     */
+    interface Sink {
+        void onAtom(AtomParameter atom);
+
+        void onBehavior(long id);
+
+        void onOpportunity(long id);
+    }
+
+    private final int mask;
+    private final byte[] kinds;
+    private final long[] ids;
+    private final AtomParameter[] items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final CrowdControl.OverflowPolicy overflowPolicy;
+
+    /**
+     * @param capacity       maximum number of queued atoms, rounded up to a power of two
+     * @param overflowPolicy what to do with an atom added to a full queue
+     */
+    AtomQueue(int capacity, CrowdControl.OverflowPolicy overflowPolicy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.kinds = new byte[size];
+        this.ids = new long[size];
+        this.items = new AtomParameter[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Add an atom, applying the overflow policy if the queue is full.
+     *
+     * @param atom the atom to add
+     * @return false if the atom itself was discarded
+     */
+    boolean offer(AtomParameter atom) {
+        return offer(KIND_ATOM, 0, atom);
+    }
+
+    /**
+     * Add a behavior id without allocating.
+     *
+     * @param id the behavior id
+     * @return false if the id itself was discarded
+     */
+    boolean offerBehavior(long id) {
+        return offer(KIND_BEHAVIOR, id, null);
+    }
+
+    /**
+     * Add a placement opportunity id without allocating.
+     *
+     * @param id the placement id
+     * @return false if the id itself was discarded
+     */
+    boolean offerOpportunity(long id) {
+        return offer(KIND_OPPORTUNITY, id, null);
+    }
+
+    private boolean offer(byte kind, long id, AtomParameter atom) {
+        while (!tryOffer(kind, id, atom)) {
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    dropped.incrementAndGet();
+                    MetricsRecorder.eventDropped();
+                    return false;
+                case DROP_OLDEST:
+                    if (drain(1, null) > 0) {
+                        dropped.incrementAndGet();
+                        MetricsRecorder.eventDropped();
+                    }
+                    break;
+                case BLOCK:
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private boolean tryOffer(byte kind, long id, AtomParameter atom) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    kinds[index] = kind;
+                    ids[index] = id;
+                    items[index] = atom;
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove up to max of the oldest atoms, handing each to the sink.
+     *
+     * @param max  the maximum number of atoms to remove
+     * @param sink receives the removed atoms; null to discard them
+     * @return the number of atoms removed
+     */
+    int drain(int max, Sink sink) {
+        int drained = 0;
+        long pos = head.get();
+        while (drained < max) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    byte kind = kinds[index];
+                    long id = ids[index];
+                    AtomParameter atom = items[index];
+                    items[index] = null;
+                    sequences.lazySet(index, pos + mask + 1);
+                    drained++;
+                    if (sink != null) {
+                        if (kind == KIND_BEHAVIOR) {
+                            sink.onBehavior(id);
+                        } else if (kind == KIND_OPPORTUNITY) {
+                            sink.onOpportunity(id);
+                        } else {
+                            sink.onAtom(atom);
+                        }
+                    }
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                break;
+            } else {
+                pos = head.get();
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * @return the number of queued atoms; only a snapshot while other threads add or drain
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the number of atoms discarded because the queue was full
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+}
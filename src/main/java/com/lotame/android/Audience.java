@@ -0,0 +1,168 @@
+package com.lotame.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Immutable, parsed result of an audience extraction call.
+ *
+ * Membership and targeting lookups are answered from sets and lists built
+ * once, when the response is parsed, so they allocate nothing and can be
+ * made from any thread without locking.
+ */
+public final class Audience {
+    private final String panoramaId;
+    private final String profileId;
+    private final List<String> audienceIds;
+    private final List<String> audienceAbbreviations;
+    private final Set<String> idSet;
+    /**
+     * The ids that are numbers, sorted, for lookups by number
+     */
+    private final long[] numericIds;
+    private final Set<String> abbreviationSet;
+    private final List<String> targetingValues;
+
+    /**
+     * The raw response this was parsed from, if any, so that an unchanged
+     * response is not parsed again.
+     */
+    final String source;
+
+    Audience(String panoramaId, String profileId, String[] audienceIds, String[] audienceAbbreviations, String source) {
+        this.panoramaId = panoramaId;
+        this.profileId = profileId;
+        this.audienceIds = Collections.unmodifiableList(Arrays.asList(audienceIds));
+        this.audienceAbbreviations = Collections.unmodifiableList(Arrays.asList(audienceAbbreviations));
+        this.source = source;
+
+        Set<String> ids = new HashSet<>(audienceIds.length * 2);
+        Set<String> abbreviations = new HashSet<>(audienceIds.length * 2);
+        List<String> targeting = new ArrayList<>(audienceIds.length);
+        long[] numeric = new long[audienceIds.length];
+        int numericCount = 0;
+        for (int i = 0; i < audienceIds.length; i++) {
+            ids.add(audienceIds[i]);
+            Long number = parseId(audienceIds[i]);
+            if (number != null) {
+                numeric[numericCount++] = number;
+            }
+            String abbreviation = audienceAbbreviations[i];
+            if (abbreviation != null) {
+                abbreviations.add(abbreviation);
+            }
+            targeting.add(abbreviation != null ? abbreviation : audienceIds[i]);
+        }
+        this.idSet = Collections.unmodifiableSet(ids);
+        this.abbreviationSet = Collections.unmodifiableSet(abbreviations);
+        this.targetingValues = Collections.unmodifiableList(targeting);
+        this.numericIds = Arrays.copyOf(numeric, numericCount);
+        Arrays.sort(numericIds);
+    }
+
+    /**
+     * @return the id as a number, or null if it is not the decimal form of
+     * one, so that only ids equal to String.valueOf() of a number match it
+     */
+    private static Long parseId(String id) {
+        if (id == null) {
+            return null;
+        }
+        try {
+            long number = Long.parseLong(id);
+            return String.valueOf(number).equals(id) ? number : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param audienceId a Lotame audience id
+     * @return true if the device belongs to the audience
+     */
+    public boolean isInAudience(String audienceId) {
+        return idSet.contains(audienceId);
+    }
+
+    /**
+     * @param audienceId a Lotame audience id
+     * @return true if the device belongs to the audience
+     */
+    public boolean isInAudience(long audienceId) {
+        return Arrays.binarySearch(numericIds, audienceId) >= 0;
+    }
+
+    /**
+     * @param abbreviation a Lotame audience abbreviation
+     * @return true if the device belongs to an audience with that abbreviation
+     */
+    public boolean isInAudienceAbbreviation(String abbreviation) {
+        return abbreviationSet.contains(abbreviation);
+    }
+
+    /**
+     * @return the values to pass for key/value ad targeting: the abbreviation
+     * of every audience the device belongs to, or its id if it has none
+     */
+    public List<String> getTargetingValues() {
+        return targetingValues;
+    }
+
+    /**
+     * @return the Lotame panorama id, or null if it was not requested or not returned
+     */
+    public String getPanoramaId() {
+        return panoramaId;
+    }
+
+    /**
+     * @return the Lotame profile id (tpid), or null if none was returned
+     */
+    public String getProfileId() {
+        return profileId;
+    }
+
+    /**
+     * @return the ids of the audiences the device belongs to
+     */
+    public List<String> getAudienceIds() {
+        return audienceIds;
+    }
+
+    /**
+     * @return the abbreviations of the audiences the device belongs to, in
+     * the same order as {@link #getAudienceIds()}.  An entry is null if the
+     * audience has no abbreviation.
+     */
+    public List<String> getAudienceAbbreviations() {
+        return audienceAbbreviations;
+    }
+}
@@ -0,0 +1,115 @@
+package com.lotame.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Two level cache of audience extraction responses, held in memory and in
+ * shared preferences so that it survives the app process.  Entries are keyed
+ * by the audience extraction url, which names the protocol, the domain, the
+ * audience extraction client id, the device id and whether the panorama id
+ * was requested.
+ *
+ * An entry younger than the time to live is fresh.  An older entry is still
+ * served, but the caller is expected to refresh it.
+ */
+class AudienceCache {
+    private static final String PREFS_NAME = "com.lotame.android.audience";
+    private static final String TIME_SUFFIX = ".t";
+
+    static final class Entry {
+        final String json;
+        final long fetchedAt;
+
+        Entry(String json, long fetchedAt) {
+            this.json = json;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private final Map<String, Entry> memory = new ConcurrentHashMap<>();
+    private final Context context;
+    private volatile SharedPreferences prefs;
+
+    AudienceCache(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @return the entry held in memory, or null if there is none.  Does not
+     * touch the disk, so may be called from the main thread.
+     */
+    Entry peek(String key) {
+        return memory.get(key);
+    }
+
+    /**
+     * @return the cached entry, or null if there is none.  May read shared
+     * preferences, so must not be called from the main thread.
+     */
+    Entry get(String key) {
+        Entry entry = memory.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        SharedPreferences prefs = prefs();
+        if (prefs == null) {
+            return null;
+        }
+        String json = prefs.getString(key, null);
+        if (json == null) {
+            return null;
+        }
+        entry = new Entry(json, prefs.getLong(key + TIME_SUFFIX, 0));
+        memory.put(key, entry);
+        return entry;
+    }
+
+    static boolean isFresh(Entry entry, long ttlMillis) {
+        long age = System.currentTimeMillis() - entry.fetchedAt;
+        return age >= 0 && age < ttlMillis;
+    }
+
+    void put(String key, String json) {
+        long now = System.currentTimeMillis();
+        memory.put(key, new Entry(json, now));
+        SharedPreferences prefs = prefs();
+        if (prefs != null) {
+            prefs.edit().putString(key, json).putLong(key + TIME_SUFFIX, now).apply();
+        }
+    }
+
+    private SharedPreferences prefs() {
+        if (prefs == null && context != null) {
+            prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        }
+        return prefs;
+    }
+}
@@ -0,0 +1,171 @@
+package com.lotame.android;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Streaming parser for audience extraction responses of the form
+ *
+ * <pre>
+ * {"Profile":{"panoramaId":"...","tpid":"...","Audiences":{"Audience":[{"id":"47280","abbr":"all"}]}}}
+ * </pre>
+ *
+ * The response is consumed token by token, so memory use is bounded by the
+ * parsed {@link Audience} rather than by the size of the payload.  Unknown
+ * fields are skipped, and a single audience object in place of the array is
+ * accepted.
+ */
+final class AudienceParser {
+    private static final String PROFILE = "Profile";
+    private static final String PANORAMA_ID = "panoramaId";
+    private static final String PROFILE_ID = "tpid";
+    private static final String AUDIENCES = "Audiences";
+    private static final String AUDIENCE = "Audience";
+    private static final String ID = "id";
+    private static final String ABBREVIATION = "abbr";
+
+    private AudienceParser() {
+    }
+
+    static Audience parse(Reader in) throws IOException {
+        return parse(in, null);
+    }
+
+    /**
+     * @param json the raw response to parse
+     * @return the parsed response, remembering the String it was parsed from
+     * @throws IOException if the response is not a valid audience response
+     */
+    static Audience parse(String json) throws IOException {
+        return parse(new StringReader(json), json);
+    }
+
+    private static Audience parse(Reader in, String source) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        Builder builder = new Builder();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (PROFILE.equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseProfile(reader, builder);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return builder.build(source);
+    }
+
+    private static void parseProfile(JsonReader reader, Builder builder) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (PANORAMA_ID.equals(name)) {
+                builder.panoramaId = nextString(reader);
+            } else if (PROFILE_ID.equals(name)) {
+                builder.profileId = nextString(reader);
+            } else if (AUDIENCES.equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseAudiences(reader, builder);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void parseAudiences(JsonReader reader, Builder builder) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!AUDIENCE.equals(reader.nextName())) {
+                reader.skipValue();
+            } else if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    parseAudience(reader, builder);
+                }
+                reader.endArray();
+            } else {
+                parseAudience(reader, builder);
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void parseAudience(JsonReader reader, Builder builder) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        String id = null;
+        String abbreviation = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (ID.equals(name)) {
+                id = nextString(reader);
+            } else if (ABBREVIATION.equals(name)) {
+                abbreviation = nextString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (id != null) {
+            builder.ids.add(id);
+            builder.abbreviations.add(abbreviation);
+        }
+    }
+
+    /**
+     * @return the string or number at the current position, or null for any other value
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    private static final class Builder {
+        String panoramaId;
+        String profileId;
+        final List<String> ids = new ArrayList<>();
+        final List<String> abbreviations = new ArrayList<>();
+
+        Audience build(String source) {
+            return new Audience(panoramaId, profileId,
+                    ids.toArray(new String[0]), abbreviations.toArray(new String[0]), source);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.lotame.android;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Background dispatcher that coalesces queued atoms into as few bcp requests
+ * as the {@link FlushPolicy} allows.  At most one flush is ever scheduled;
+ * a new trigger only moves it earlier.  Flushes run on a single dispatcher
+ * thread, so requests of one CrowdControl instance never overlap.
+ *
+ * Placement opportunities have a deadline of their own.  When it passes
+ * they are flushed on their own, from a timer shared by every dispatcher,
+ * on the priority network lane, so they are not held up while a large
+ * batch of behaviors is being sent.
+ */
+class BatchDispatcher {
+    /**
+     * The shortest wait before retrying a flush that could not send
+     */
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    /**
+     * What the dispatcher flushes: implemented by CrowdControl
+     */
+    interface Target {
+        /**
+         * Synchronously send whatever is queued, if anything.
+         *
+         * @return false if nothing could be sent yet
+         */
+        boolean flushQueue();
+
+        /**
+         * @return true if the last flush left queued behaviors for the next one
+         */
+        boolean hasBehaviorBacklog();
+
+        /**
+         * Send the queued placement opportunities.
+         */
+        void flushOpportunities();
+    }
+
+    private final Target target;
+    private final FlushPolicy policy;
+    private final Context appContext;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final BackgroundListener backgroundListener;
+
+    private ScheduledFuture<?> scheduled;
+    private long scheduledAt;
+    private long lastFlushAt = Long.MIN_VALUE / 2;
+
+    private ScheduledFuture<?> opportunitiesScheduled;
+    private long opportunitiesScheduledAt;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BatchDispatcher.this) {
+                scheduled = null;
+                lastFlushAt = SystemClock.elapsedRealtime();
+            }
+            if (!target.flushQueue()) {
+                // Not ready to send yet; try again once the batch ages out,
+                // but never straight away, which would spin while offline
+                schedule(Math.max(policy.getMaxBatchAgeMillis(), MIN_RETRY_MILLIS));
+            } else if (target.hasBehaviorBacklog()) {
+                // The flush was limited to a share of the queued behaviors
+                requestFlush();
+            }
+        }
+    };
+
+    private final Runnable opportunitiesTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BatchDispatcher.this) {
+                opportunitiesScheduled = null;
+            }
+            target.flushOpportunities();
+        }
+    };
+
+    /**
+     * @param target  what to flush
+     * @param policy  when to flush
+     * @param context any context of the app, to flush when it is moved to
+     *                the background; may be null
+     */
+    BatchDispatcher(Target target, FlushPolicy policy, Context context) {
+        this.target = target;
+        this.policy = policy;
+        this.appContext = context == null ? null : context.getApplicationContext();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, DISPATCHER_THREADS);
+        // A dispatcher that is never shut down must not keep a thread, and
+        // through it the instance, alive once it is idle
+        scheduler.setKeepAliveTime(IDLE_THREAD_SECONDS, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        if (policy.isFlushOnBackground() && appContext != null) {
+            backgroundListener = new BackgroundListener(this);
+            appContext.registerComponentCallbacks(backgroundListener);
+        } else {
+            backgroundListener = null;
+        }
+    }
+
+    /**
+     * Called after an atom has been queued.
+     *
+     * @param queued the number of atoms now queued
+     */
+    void onAdd(int queued) {
+        schedule(queued >= policy.getMaxBatchSize() ? 0 : policy.getMaxBatchAgeMillis());
+    }
+
+    /**
+     * Called after a placement opportunity has been queued.
+     *
+     * @param deadlineMillis the longest the opportunity may wait to be sent
+     */
+    synchronized void onOpportunityAdd(long deadlineMillis) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        long at = SystemClock.elapsedRealtime() + deadlineMillis;
+        if (opportunitiesScheduled != null) {
+            if (opportunitiesScheduledAt <= at) {
+                return;
+            }
+            opportunitiesScheduled.cancel(false);
+        }
+        opportunitiesScheduledAt = at;
+        opportunitiesScheduled = NetworkExecutors.timer().schedule(opportunitiesTask, deadlineMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flush as soon as the minimum interval between flushes allows.
+     */
+    synchronized void requestFlush() {
+        long wait = lastFlushAt + policy.getMinFlushIntervalMillis() - SystemClock.elapsedRealtime();
+        schedule(Math.max(0, wait));
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        long at = SystemClock.elapsedRealtime() + delayMillis;
+        if (scheduled != null) {
+            if (scheduledAt <= at) {
+                return;
+            }
+            scheduled.cancel(false);
+        }
+        scheduledAt = at;
+        scheduled = scheduler.schedule(flushTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flush whatever is queued and stop the dispatcher thread.
+     */
+    synchronized void shutdown() {
+        if (backgroundListener != null) {
+            appContext.unregisterComponentCallbacks(backgroundListener);
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+        if (opportunitiesScheduled != null) {
+            opportunitiesScheduled.cancel(false);
+            opportunitiesScheduled = null;
+        }
+        scheduler.execute(flushTask);
+        scheduler.shutdown();
+    }
+
+    private void onBackground() {
+        Logger.d("App moved to the background, flushing queue");
+        schedule(0);
+    }
+
+    private static final ThreadFactory DISPATCHER_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CrowdControl-dispatcher");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * Flushes when the app is moved to the background.  The app context
+     * holds it for the life of the process, so it only holds the dispatcher
+     * weakly, and unregisters itself once the dispatcher is gone.
+     */
+    private static final class BackgroundListener implements ComponentCallbacks2 {
+        private final WeakReference<BatchDispatcher> dispatcher;
+        private final Context appContext;
+
+        BackgroundListener(BatchDispatcher dispatcher) {
+            this.dispatcher = new WeakReference<>(dispatcher);
+            this.appContext = dispatcher.appContext;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            BatchDispatcher dispatcher = this.dispatcher.get();
+            if (dispatcher == null) {
+                appContext.unregisterComponentCallbacks(this);
+            } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                dispatcher.onBackground();
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+        }
+    }
+}
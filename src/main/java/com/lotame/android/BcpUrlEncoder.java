@@ -0,0 +1,109 @@
+package com.lotame.android;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Writes bcp url path parameters of the form key=value/ straight into a
+ * caller supplied buffer.
+ *
+ * Values are encoded exactly as {@link java.net.URLEncoder} does with UTF-8,
+ * but without the intermediate Strings: characters that need no encoding are
+ * copied as they are, and numbers are appended as digits.
+ */
+final class BcpUrlEncoder {
+    private static final char EQUAL = '=';
+    private static final char SLASH = '/';
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private BcpUrlEncoder() {
+    }
+
+    static void appendParameter(StringBuilder out, String key, String value) {
+        out.append(key).append(EQUAL);
+        if (value != null) {
+            appendEncoded(out, value);
+        }
+        out.append(SLASH);
+    }
+
+    static void appendParameter(StringBuilder out, String key, long value) {
+        out.append(key).append(EQUAL).append(value).append(SLASH);
+    }
+
+    /**
+     * Append the application/x-www-form-urlencoded form of a value.
+     *
+     * @param out   the buffer to append to
+     * @param value the value to encode
+     */
+    static void appendEncoded(StringBuilder out, String value) {
+        int length = value.length();
+        int safe = 0;
+        while (safe < length && isSafe(value.charAt(safe))) {
+            safe++;
+        }
+        if (safe == length) {
+            out.append(value);
+            return;
+        }
+        out.append(value, 0, safe);
+        for (int i = safe; i < length; i++) {
+            char c = value.charAt(i);
+            if (isSafe(c)) {
+                out.append(c);
+            } else if (c == ' ') {
+                out.append('+');
+            } else if (c < 0x80) {
+                appendByte(out, c);
+            } else if (c < 0x800) {
+                appendByte(out, 0xC0 | (c >> 6));
+                appendByte(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendByte(out, 0xF0 | (codePoint >> 18));
+                appendByte(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendByte(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendByte(out, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced by '?' like the UTF-8 encoder does
+                appendByte(out, '?');
+            } else {
+                appendByte(out, 0xE0 | (c >> 12));
+                appendByte(out, 0x80 | ((c >> 6) & 0x3F));
+                appendByte(out, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static boolean isSafe(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+
+    private static void appendByte(StringBuilder out, int b) {
+        out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+}
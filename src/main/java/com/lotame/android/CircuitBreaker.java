@@ -0,0 +1,73 @@
+package com.lotame.android;
+
+import android.os.SystemClock;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Stops requests to an endpoint that keeps failing.  After a number of
+ * consecutive failures the breaker opens and refuses requests for a while;
+ * once that time has passed requests are let through again, and the first
+ * failure opens it again straight away.
+ */
+class CircuitBreaker {
+    private final int threshold;
+    private final long resetMillis;
+
+    private int failures;
+    private long openUntil;
+
+    CircuitBreaker(int threshold, long resetMillis) {
+        this.threshold = threshold;
+        this.resetMillis = resetMillis;
+    }
+
+    /**
+     * @return true if a request may be sent
+     */
+    synchronized boolean allowRequest() {
+        return failures < threshold || SystemClock.elapsedRealtime() >= openUntil;
+    }
+
+    /**
+     * @return how long until requests are allowed again, 0 if they are now
+     */
+    synchronized long remainingOpenMillis() {
+        return allowRequest() ? 0 : openUntil - SystemClock.elapsedRealtime();
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (failures >= threshold) {
+            openUntil = SystemClock.elapsedRealtime() + resetMillis;
+            if (Logger.isEnabled())
+                Logger.d(failures + " requests failed in a row, pausing sends for " + resetMillis + "ms");
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.lotame.android;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tracks whether the device has network connectivity, so that requests are
+ * not attempted while they are bound to fail.  One monitor is shared by the
+ * process; it listens for changes of the default network from API 24, and
+ * through a receiver registered with the application context before that.
+ *
+ * If the app does not hold ACCESS_NETWORK_STATE, or the state cannot be
+ * read, the device is assumed to be connected.
+ */
+class ConnectivityMonitor {
+    private static ConnectivityMonitor instance;
+
+    private final ConnectivityManager connectivityManager;
+    private List<Runnable> whenConnected = new ArrayList<>();
+
+    private ConnectivityMonitor(Context appContext) {
+        connectivityManager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * @param context any context of the app, or null
+     * @return the shared monitor, or null if there is no context to monitor with
+     */
+    static synchronized ConnectivityMonitor get(Context context) {
+        if (instance == null && context != null) {
+            Context appContext = context.getApplicationContext();
+            if (appContext == null) {
+                appContext = context;
+            }
+            ConnectivityMonitor monitor = new ConnectivityMonitor(appContext);
+            try {
+                monitor.listen(appContext);
+            } catch (Exception e) {
+                Logger.e("Unable to monitor connectivity", e);
+            }
+            instance = monitor;
+        }
+        return instance;
+    }
+
+    private void listen(Context appContext) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            if (connectivityManager != null) {
+                connectivityManager.registerDefaultNetworkCallback(new DefaultNetworkCallback(this));
+            }
+        } else {
+            listenForBroadcasts(appContext);
+        }
+    }
+
+    /**
+     * Only used below API 24, where there is no default network callback.
+     */
+    @SuppressWarnings("deprecation")
+    private void listenForBroadcasts(Context appContext) {
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (isConnected()) {
+                    onConnected();
+                }
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    boolean isConnected() {
+        if (connectivityManager == null) {
+            return true;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                return DefaultNetworkCallback.isConnected(connectivityManager);
+            }
+            return isActiveNetworkConnected();
+        } catch (SecurityException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Only used below API 24.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean isActiveNetworkConnected() {
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * Block until the device is connected.
+     *
+     * @param timeoutMillis the longest time to wait
+     * @return true if the device is connected
+     */
+    synchronized boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean connected;
+        while (!(connected = isConnected())) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        return connected;
+    }
+
+    /**
+     * Run a task once the device is next connected.  Tasks run on the
+     * collection lane of {@link NetworkExecutors}, off the main thread.
+     */
+    void runWhenConnected(Runnable task) {
+        synchronized (this) {
+            whenConnected.add(task);
+        }
+        // Connectivity may have returned since the caller checked, in which
+        // case no broadcast is coming to run the task
+        if (isConnected()) {
+            runPending();
+        }
+    }
+
+    private void onConnected() {
+        Logger.d("Connectivity restored");
+        runPending();
+    }
+
+    private void runPending() {
+        List<Runnable> tasks;
+        synchronized (this) {
+            notifyAll();
+            if (whenConnected.isEmpty()) {
+                return;
+            }
+            tasks = whenConnected;
+            whenConnected = new ArrayList<>();
+        }
+        Executor executor = NetworkExecutors.get(NetworkExecutors.Lane.COLLECTION);
+        for (Runnable task : tasks) {
+            executor.execute(task);
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.N)
+    private static final class DefaultNetworkCallback extends ConnectivityManager.NetworkCallback {
+        private final ConnectivityMonitor monitor;
+
+        DefaultNetworkCallback(ConnectivityMonitor monitor) {
+            this.monitor = monitor;
+        }
+
+        static boolean isConnected(ConnectivityManager connectivityManager) {
+            Network network = connectivityManager.getActiveNetwork();
+            NetworkCapabilities capabilities = network == null ? null : connectivityManager.getNetworkCapabilities(network);
+            return capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+        }
+
+        @Override
+        public void onAvailable(Network network) {
+            monitor.onConnected();
+        }
+    }
+}
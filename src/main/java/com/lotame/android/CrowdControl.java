@@ -2,19 +2,23 @@ package com.lotame.android;
 
 import android.content.Context;
 import android.os.AsyncTask;
-import android.util.Log;
-
-import com.google.android.gms.ads.identifier.AdvertisingIdClient;
-import com.google.android.gms.ads.identifier.AdvertisingIdClient.Info;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.text.MessageFormat;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -131,23 +135,126 @@ public class CrowdControl {
     private static final String AE_SUBDOMAIN = "ad.";
     private static final String DEFAULT_DOMAIN = "crwdcntrl.net";
     private static final String BCP_SERVLET = "5";
-    private static final String EQUAL = "=";
     private static final String SLASH = "/";
 
     private static int CONNECTION_TIMEOUT = 5 * 1000;//5 seconds
+    private static final int DEFAULT_MAX_POST_BODY_LENGTH = 64 * 1024;
+    private static final int DEFAULT_MAX_URL_LENGTH = 8 * 1024;
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 2;
+    /**
+     * Room left in a bcp url for the rand and pv parameters
+     */
+    private static final int BCP_URL_RESERVED_LENGTH = 32;
+    private static final long DEFAULT_OPPORTUNITY_FLUSH_DEADLINE_MILLIS = 1000;
 
     private Random random = new Random();
-    final private LinkedList<AtomParameter> queue = new LinkedList<>();
-    final private Map<String, String> headerParams = new HashMap<>();
-    private boolean placementsIncluded = false;
-    private boolean sessionTransmitted = false;
+    /**
+     * Behaviors and any other key/value data
+     */
+    private volatile AtomQueue queue;
+    /**
+     * Placement opportunities, queued apart so they can be sent ahead of behaviors
+     */
+    private volatile AtomQueue opportunityQueue;
+    private final Object queueLock = new Object();
+    /**
+     * Replaced as a whole by setRequestProperty(), so requests read it without locking
+     */
+    private volatile RequestHeaders headers = RequestHeaders.EMPTY;
+    private final Object headersLock = new Object();
+    private volatile boolean sessionTransmitted = false;
     private Context context;
-    private StringBuilder url;
+    private volatile String bcpUrlPrefix;
+    private final StringBuilder bcpUrlBuffer = new StringBuilder(256);
+    private final BcpUrlWriter bcpUrlWriter = new BcpUrlWriter();
     private int clientId = -1;
     private int audienceExtractionClientId = -1;
     private String domain = null;
 
-    protected static boolean debug = false;
+    protected static volatile boolean debug = false;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 8192;
+    private static int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private static OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    private static boolean persistentQueueEnabled = false;
+
+    private static volatile long audienceCacheTtlMillis = 0;
+    private static AudienceCache audienceCache;
+    private static final SingleFlight<String> audienceRequests = new SingleFlight<>();
+    private static final SingleFlight<Audience> parsedAudienceRequests = new SingleFlight<>();
+    private static Handler mainHandler;
+    private PersistentQueue persistentQueue;
+    private volatile BatchDispatcher dispatcher;
+    private final BatchDispatcher.Target dispatcherTarget = new BatchDispatcher.Target() {
+        @Override
+        public boolean flushQueue() {
+            return CrowdControl.this.flushQueue();
+        }
+
+        @Override
+        public boolean hasBehaviorBacklog() {
+            return CrowdControl.this.hasBehaviorBacklog();
+        }
+
+        @Override
+        public void flushOpportunities() {
+            CrowdControl.this.flushOpportunities();
+        }
+    };
+    private volatile TransmissionMode transmissionMode = TransmissionMode.GET;
+    private volatile int maxPostBodyLength = DEFAULT_MAX_POST_BODY_LENGTH;
+    private volatile int maxUrlLength = DEFAULT_MAX_URL_LENGTH;
+    private volatile int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private volatile long opportunityFlushDeadlineMillis = DEFAULT_OPPORTUNITY_FLUSH_DEADLINE_MILLIS;
+    private volatile int maxBehaviorsPerFlush;
+    private volatile boolean behaviorBacklog;
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+    private volatile CircuitBreaker circuitBreaker = newCircuitBreaker(retryPolicy);
+    private volatile boolean awaitingConnectivity;
+    private volatile boolean awaitingCircuitBreaker;
+    /**
+     * The requests of failed sends, sent again before anything newly queued
+     */
+    private volatile BcpBatch unsentBatch;
+
+    private CrowdControlEngine engine;
+    private final IdentityListener identityListener = new IdentityListener();
+    private IdType requestedIdType;
+    private boolean initializing;
+    private long constructedAt;
+    private final FutureTask<Void> initialization = new FutureTask<>(NO_OP, null);
+    private final List<InitializationListener> initializationListeners = new ArrayList<>(1);
+    private final List<RequestTemplate> pendingRequests = new ArrayList<>();
+    private final StringBuilder requestUrlBuffer = new StringBuilder(256);
+    private volatile HttpTransport requestTransport;
+    private volatile long requestDedupeWindowMillis;
+    private volatile FrequencyCap frequencyCap;
+    /**
+     * When each recently sent request url was last sent, oldest first
+     */
+    private final LinkedHashMap<String, Long> recentRequests = new LinkedHashMap<>();
+    private boolean flushWhenInitialized;
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static final AtomQueue.Sink DISCARD = new AtomQueue.Sink() {
+        @Override
+        public void onAtom(AtomParameter atom) {
+        }
+
+        @Override
+        public void onBehavior(long id) {
+        }
+
+        @Override
+        public void onOpportunity(long id) {
+        }
+    };
 
     /**
      * The values for id type must match what Lotame supports
@@ -175,16 +282,22 @@ public class CrowdControl {
         IdType idType;
     }
 
-    private Id id;
+    private volatile Id id;
+
+    /**
+     * The most recently retrieved audiences, replaced as a whole whenever an
+     * extraction completes.
+     */
+    private volatile Audience audience;
 
     /**
      * Indicates whether the Google Play limited ad tracking is enabled.  If
      * we do not have access to the Google Play service then it will be
      * false by default.
      */
-    private boolean limitedAdTrackingEnabled;
+    private volatile boolean limitedAdTrackingEnabled;
 
-    private boolean googleAdvertiserIdAvailable;
+    private volatile boolean googleAdvertiserIdAvailable;
 
     // Denotes whether or not to expect the panorama id from the audience extraction api.
     private boolean enablePanoramaId = false;
@@ -192,12 +305,10 @@ public class CrowdControl {
     private Protocol protocol;
     private final static Protocol PROTOCOL_DEFAULT = Protocol.HTTP;
 
-    Thread setupThread;
-
     /**
      * Indicates whether or not the instance has been initialized.
      */
-    private boolean initialized;
+    private volatile boolean initialized;
 
     /**
      * Construct a CrowdControl instance for the supplied client id.  This
@@ -310,91 +421,199 @@ public class CrowdControl {
         this.protocol = protocol;
         this.domain = domain;
         this.enablePanoramaId = enablePanoramaId;
+        if (persistentQueueEnabled) {
+            persistentQueue = new PersistentQueue(ctx, clientId + "_" + protocol);
+        }
 
-        //
-        // On a separate Thread we will initialize the SDK, getting the id
-        // and determining whether or not we are in a limited ad tracking
-        // context.
-        //
-        if (CrowdControl.debug) Log.d(CrowdControl.LOG_TAG, "Setting up the get id thread");
-        final Context contextFinal = ctx;
-        final Protocol protocolFinal = this.protocol;
-        Runnable runnable = new Runnable() {
-
-            public void run() {
+        this.requestedIdType = idType;
+        this.constructedAt = SystemClock.elapsedRealtime();
+
+        if (persistentQueue != null) {
+            NetworkExecutors.get(NetworkExecutors.Lane.COLLECTION).execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Replayed atoms are journaled again like newly queued
+                    // ones, so any drain, even one that started before the
+                    // replay, only commits segments of this process
+                    List<AtomParameter> replayed = persistentQueue.replay();
+                    if (isLimitedAdTrackingEnabled()) {
+                        replayed.clear();
+                    }
+                    for (AtomParameter atom : replayed) {
+                        if (AtomParameter.Type.PLACEMENT_OPPS.equals(atom.getType())
+                                ? opportunityQueue().offer(atom) : queue().offer(atom)) {
+                            persistentQueue.append(atom);
+                        }
+                    }
+                    persistentQueue.discardReplayed();
+                    if (!replayed.isEmpty()) {
+                        onQueued(false);
+                    }
+                }
+            });
+        }
 
-                // Set the default values for the ad tracking availability
-                // and ad tracking preferences
-                setGoogleAdvertiserIdAvailable(false);
-                setLimitedAdTrackingEnabled(false);
+        // The identity is resolved once for the process; this instance is
+        // initialized as soon as it is known, straight away if the cached
+        // one limits ad tracking
+        engine = CrowdControlEngine.get(ctx);
+        engine.addListener(identityListener);
+    }
 
-                // Set the id to a default value that we will be able to use
-                // regardless of what happens in the try block.
-                String id = Utils.getUuid(contextFinal);
-                IdType mIdType = idType != null ? idType : IdType.SHA1;
-                try {
-                    Info adInfo = null;
-                    adInfo = AdvertisingIdClient.getAdvertisingIdInfo(contextFinal);
-
-                    if (adInfo != null) {
-                        if (CrowdControl.debug)
-                            Log.d(CrowdControl.LOG_TAG, "We have access to the Google Play, Info instance...");
-                        setGoogleAdvertiserIdAvailable(true);
-                        setLimitedAdTrackingEnabled(adInfo.isLimitAdTrackingEnabled());
-                        id = adInfo.getId();
-
-                        if (idType == null)
-                            mIdType = IdType.GAID;
-
-                        if (CrowdControl.debug)
-                            Log.d(CrowdControl.LOG_TAG, "AdvertiserId  = " + id);
-                        if (CrowdControl.debug)
-                            Log.d(CrowdControl.LOG_TAG, "isLimitedAdTrackingEnabled = " + isLimitedAdTrackingEnabled());
-                    } else {
-                        if (CrowdControl.debug)
-                            Log.d(CrowdControl.LOG_TAG, "adInfo is null, unable to access the Google Play AdvertiserId data.  Using the hashed android id and unable to check the ad tracking preferences");
-                    }
+    /**
+     * Use a resolved identity: the id, its type and the ad tracking
+     * preferences, and the bcp url built from them.
+     *
+     * @param identity the resolved identity
+     */
+    private void applyIdentity(IdentityCache.Entry identity) {
+        IdType idType = requestedIdType != null ? requestedIdType
+                : identity.googleAdvertiserIdAvailable ? IdType.GAID : IdType.SHA1;
+        setGoogleAdvertiserIdAvailable(identity.googleAdvertiserIdAvailable);
+        setLimitedAdTrackingEnabled(identity.limitedAdTracking);
+        setIdAndType(identity.id, idType);
+
+        StringBuilder url = new StringBuilder(protocol.getProtocString()).append("://")
+                .append(BCP_SUBDOMAIN).append(getDomain()).append(SLASH).append(BCP_SERVLET).append(SLASH);
+        BcpUrlEncoder.appendParameter(url, KEY_CLIENT_ID, getClientId());
+        BcpUrlEncoder.appendParameter(url, KEY_ID, getId());
+        BcpUrlEncoder.appendParameter(url, KEY_DEVICE_TYPE, getIdType().toString());
+        BcpUrlEncoder.appendParameter(url, KEY_SDK_VERSION, SDK_VERSION);
+        BcpUrlEncoder.appendParameter(url, KEY_ENV_ID, VALUE_APP);
+        bcpUrlPrefix = url.toString();
+
+        if (Logger.isEnabled()) {
+            // Only built when it will be logged
+            Logger.d("using id of " + getId() +
+                    " with id type of " + getIdType() +
+                    " for client " + getClientId() +
+                    " configured for " + getProtocol() +
+                    " with url of " + bcpUrlPrefix);
+        }
+    }
 
-                } catch (Exception e) {
-                    if (CrowdControl.debug)
-                        Log.d(CrowdControl.LOG_TAG, "Exception thrown attempting to access Google Play Service to retrieve AdvertiserId data; e = " + e.toString());
-                } finally {
+    /**
+     * Drop everything queued, journaled or kept from a failed send, once ad
+     * tracking is known to be limited.
+     */
+    private synchronized void discardQueued() {
+        AtomQueue queue = this.queue;
+        if (queue != null) {
+            queue.drain(queue.size(), DISCARD);
+        }
+        AtomQueue opportunityQueue = this.opportunityQueue;
+        if (opportunityQueue != null) {
+            opportunityQueue.drain(opportunityQueue.size(), DISCARD);
+        }
+        unsentBatch = null;
+        if (persistentQueue != null) {
+            persistentQueue.clear();
+        }
+    }
 
-                    setIdAndType(id, mIdType);
+    /**
+     * Called once, when the identity is first known.  Sends whatever was
+     * buffered while it was being resolved and notifies the listeners passed
+     * to {@link #whenInitialized(InitializationListener)}.
+     */
+    private void onInitialized() {
+        MetricsRecorder.initialized(SystemClock.elapsedRealtime() - constructedAt);
+        startSession();
+
+        List<RequestTemplate> requests;
+        synchronized (pendingRequests) {
+            setInitialized(true);
+            requests = new ArrayList<>(pendingRequests);
+            pendingRequests.clear();
+        }
+        boolean flush;
+        synchronized (this) {
+            flush = flushWhenInitialized;
+            flushWhenInitialized = false;
+        }
 
-                    url = new StringBuilder(protocolFinal.getProtocString() + "://" + BCP_SUBDOMAIN + getDomain() + "/" + BCP_SERVLET + "/");
-                    appendParameter(new AtomParameter(KEY_CLIENT_ID, String.valueOf(getClientId())));
-                    appendParameter(new AtomParameter(KEY_ID, getId(), AtomParameter.Type.ID));
-                    appendParameter(new AtomParameter(KEY_DEVICE_TYPE, getIdType().toString()));
-                    appendParameter(new AtomParameter(KEY_SDK_VERSION, SDK_VERSION));
-                    appendParameter(new AtomParameter(KEY_ENV_ID, VALUE_APP));
+        if (isLimitedAdTrackingEnabled()) {
+            // Nothing added before the preference was known may be collected
+            discardQueued();
+        } else {
+            for (RequestTemplate request : requests) {
+                sendRequest(request);
+            }
+            if (!isQueueEmpty() && (flush || dispatcher != null)) {
+                bcpAsync();
+            }
+        }
 
-                    if (CrowdControl.debug) Log.d(CrowdControl.LOG_TAG, "using id of " + getId() +
-                            "with id type of " + getIdType() +
-                            " for client " + getClientId() +
-                            " configured for " + getProtocol() +
-                            " with url of " + url);
+        initialization.run();
+        List<InitializationListener> listeners;
+        synchronized (initializationListeners) {
+            listeners = new ArrayList<>(initializationListeners);
+            initializationListeners.clear();
+        }
+        for (InitializationListener listener : listeners) {
+            notifyInitialized(listener);
+        }
+    }
 
-                    startSession();
+    private void notifyInitialized(final InitializationListener listener) {
+        getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onInitialized(CrowdControl.this);
+            }
+        });
+    }
 
-                    setInitialized(true);
+    /**
+     * Be told when the instance is initialized.  Data added and sends
+     * requested before then are buffered, and sent once it is.
+     *
+     * An instance created after an earlier one has resolved the device id
+     * is initialized straight away, from the id cached on disk.
+     *
+     * @param listener notified on the main thread once the instance is
+     *                 initialized, straight away if it already is; may be null
+     * @return a Future whose get() returns once the instance is initialized
+     */
+    public Future<Void> whenInitialized(InitializationListener listener) {
+        if (listener != null) {
+            boolean initialized;
+            synchronized (initializationListeners) {
+                initialized = initialization.isDone();
+                if (!initialized) {
+                    initializationListeners.add(listener);
                 }
             }
-        };
+            if (initialized) {
+                notifyInitialized(listener);
+            }
+        }
+        return initialization;
+    }
 
-        //
-        // Instantiate and run the Thread that will attempt to gather the
-        // AdvertiserId data.
-        //
-        try {
-            setupThread = new Thread(runnable);
-            if (CrowdControl.debug)
-                Log.d(CrowdControl.LOG_TAG, "Starting Thread which will gather id and ad tracking preferences");
-            setupThread.start();
-        } catch (Exception e) {
-            if (CrowdControl.debug)
-                Log.e(CrowdControl.LOG_TAG, "Unable to run the thread which determines the id and ad tracking preferences");
-            if (CrowdControl.debug) Log.e(CrowdControl.LOG_TAG, "Exception e = " + e.toString());
+    /**
+     * Applies the identity resolved by the engine, initializing the instance
+     * the first time.  Always applies the engine's current identity, so that
+     * notifications that race each other cannot leave a stale one in place.
+     */
+    private final class IdentityListener implements CrowdControlEngine.IdentityListener {
+        @Override
+        public void onIdentityChanged(IdentityCache.Entry ignored) {
+            boolean first;
+            boolean optedOut;
+            synchronized (this) {
+                boolean wasLimited = isLimitedAdTrackingEnabled();
+                applyIdentity(engine.getIdentity());
+                first = !initialization.isDone() && !initializing;
+                optedOut = !first && !wasLimited && isLimitedAdTrackingEnabled();
+                initializing = true;
+            }
+            if (first) {
+                onInitialized();
+            } else if (optedOut) {
+                Logger.d("Ad tracking is now limited, discarding the queued data");
+                discardQueued();
+            }
         }
     }
 
@@ -405,6 +624,275 @@ public class CrowdControl {
      */
     public static void enableDebug(boolean debug) {
         CrowdControl.debug = debug;
+        Logger.enabled = debug;
+    }
+
+    /**
+     * Send log messages to the given logger rather than to logcat, for
+     * example to forward them to the app's own logging.  Messages are only
+     * produced while {@link #enableDebug(boolean)} is on.
+     *
+     * @param logger receives every log message, or null to log to logcat
+     */
+    public static void setLogger(CrowdControlLogger logger) {
+        Logger.setLogger(logger);
+    }
+
+    /**
+     * Only log one in every {@code oneIn} of the messages logged for each
+     * added event, to keep debug logging from slowing down apps that add
+     * many events.  Other messages are always logged.
+     *
+     * @param oneIn defaults to 1, logging every event
+     */
+    public static void setLogSampling(int oneIn) {
+        if (oneIn < 1) {
+            throw new IllegalArgumentException("oneIn must be positive");
+        }
+        Logger.setSampling(oneIn);
+    }
+
+    /**
+     * Set to true to count events, requests and audience cache lookups, and
+     * to time requests, flushes and initialization, across every instance.
+     * Read the results with {@link #getMetrics()}.  While disabled, the
+     * default, recording costs a single flag check.
+     *
+     * @param enabled defaults to false
+     */
+    public static void enableMetrics(boolean enabled) {
+        MetricsRecorder.enabled = enabled;
+    }
+
+    /**
+     * @return a snapshot of the metrics recorded since they were enabled or
+     * last reset
+     */
+    public static Metrics getMetrics() {
+        return MetricsRecorder.snapshot();
+    }
+
+    /**
+     * Set every metric back to zero, for example after reporting a snapshot.
+     */
+    public static void resetMetrics() {
+        MetricsRecorder.reset();
+    }
+
+    /**
+     * Bound the number of atoms an instance keeps queued between sends.  Only
+     * affects instances that have not yet queued any data.  Placement
+     * opportunities and behaviors are queued apart, each bounded by the
+     * capacity.
+     *
+     * @param capacity       the maximum number of queued opportunities, and
+     *                       of other queued atoms, defaults to 8192
+     * @param overflowPolicy what to do when an atom is added to a full queue,
+     *                       defaults to {@link OverflowPolicy#DROP_OLDEST}
+     */
+    public static void setQueueLimits(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("overflowPolicy must not be null");
+        }
+        CrowdControl.queueCapacity = capacity;
+        CrowdControl.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Set to true to journal queued data to disk, so that data added but not
+     * yet sent survives the process being killed.  Journaled data is replayed
+     * into the queue by the next CrowdControl instance constructed with the
+     * same client id and protocol, and removed once it has been sent.  Only
+     * affects instances constructed after the call.
+     *
+     * @param enabled defaults to false
+     */
+    public static void enablePersistentQueue(boolean enabled) {
+        CrowdControl.persistentQueueEnabled = enabled;
+    }
+
+    /**
+     * Cache audience extraction responses, in memory and on disk, for the
+     * supplied time.  While an entry is fresh {@link #getAudienceJSON(long, TimeUnit)}
+     * returns it without a network call.  Once it expires it is still
+     * returned, while a single background call refreshes it.
+     *
+     * @param ttl      how long a response is fresh; 0, the default, disables the cache
+     * @param timeUnit the unit of ttl
+     */
+    public static void setAudienceCacheTtl(long ttl, TimeUnit timeUnit) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl must not be negative");
+        }
+        CrowdControl.audienceCacheTtlMillis = timeUnit.toMillis(ttl);
+    }
+
+    /**
+     * Replace the executors that run the SDK's network calls.  By default
+     * each kind of traffic gets its own small pool of background threads,
+     * separate from the AsyncTask executors, so that audience extraction
+     * calls are never queued behind collection calls.
+     *
+     * @param collectionExecutor runs bcp calls and {@link #sendRequest(String)}
+     *                           requests, or null for the default pool
+     * @param audienceExecutor   runs audience extraction calls, or null for
+     *                           the default pool
+     */
+    public static void setNetworkExecutors(Executor collectionExecutor, Executor audienceExecutor) {
+        NetworkExecutors.set(collectionExecutor, audienceExecutor);
+    }
+
+    /**
+     * Let this instance transmit queued data on its own, from a background
+     * thread, whenever one of the thresholds of the supplied policy is
+     * reached.  While a policy is set, {@link #bcpAsync()} only requests a
+     * flush, which is coalesced with other pending flushes.
+     *
+     * @param policy the flush thresholds, or null to go back to sending only
+     *               on explicit calls to {@link #bcp()} and {@link #bcpAsync()}
+     */
+    public void setFlushPolicy(FlushPolicy policy) {
+        BatchDispatcher previous = dispatcher;
+        if (policy == null) {
+            dispatcher = null;
+        } else {
+            FlushPolicy copy = new FlushPolicy(policy.getMaxBatchSize(), policy.getMaxBatchAgeMillis(),
+                    policy.getMinFlushIntervalMillis(), policy.isFlushOnBackground());
+            dispatcher = new BatchDispatcher(dispatcherTarget, copy, getContext());
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Queue each distinct behavior, opportunity or key/value pair at most
+     * the supplied number of times per session, dropping further copies as
+     * they are added.  This keeps apps that add the same behavior from, for
+     * example, every list item bind from sending it hundreds of times.  The
+     * counts start afresh with each {@link #startSession()}.
+     *
+     * @param maxPerSession how many times each distinct event is queued per
+     *                      session, 1 to drop every duplicate; 0, the
+     *                      default, queues every event
+     */
+    public void setFrequencyCap(int maxPerSession) {
+        if (maxPerSession < 0) {
+            throw new IllegalArgumentException("maxPerSession must not be negative");
+        }
+        frequencyCap = maxPerSession == 0 ? null : new FrequencyCap(maxPerSession);
+    }
+
+    /**
+     * Control how failed sends of queued data are retried.  By default the
+     * limits of {@link RetryPolicy#RetryPolicy()} apply.
+     *
+     * @param policy the retry limits, or null to attempt every request once
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        if (policy == null) {
+            this.retryPolicy = null;
+            return;
+        }
+        RetryPolicy copy = new RetryPolicy(policy.getMaxAttempts(), policy.getInitialBackoffMillis(),
+                policy.getMaxBackoffMillis(), policy.getCircuitBreakerThreshold(),
+                policy.getCircuitBreakerResetMillis());
+        this.circuitBreaker = newCircuitBreaker(copy);
+        this.retryPolicy = copy;
+    }
+
+    private static CircuitBreaker newCircuitBreaker(RetryPolicy policy) {
+        return new CircuitBreaker(policy.getCircuitBreakerThreshold(), policy.getCircuitBreakerResetMillis());
+    }
+
+    /**
+     * Choose how queued data is transmitted by {@link #bcp()} and
+     * {@link #bcpAsync()}.
+     *
+     * @param mode {@link TransmissionMode#GET}, the default, or
+     *             {@link TransmissionMode#POST_GZIP} for large batches
+     */
+    public void setTransmissionMode(TransmissionMode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        this.transmissionMode = mode;
+    }
+
+    /**
+     * Limit the uncompressed size of a single {@link TransmissionMode#POST_GZIP}
+     * request.  A larger batch is split across several requests.
+     *
+     * @param maxLength the maximum length in characters, defaults to 64KiB
+     */
+    public void setMaxPostBodyLength(int maxLength) {
+        if (maxLength < 1) {
+            throw new IllegalArgumentException("maxLength must be positive");
+        }
+        this.maxPostBodyLength = maxLength;
+    }
+
+    /**
+     * Limit the length of a single bcp url.  Queued data that does not fit
+     * is split across several requests.
+     *
+     * @param maxLength the maximum length in characters, defaults to 8KiB
+     */
+    public void setMaxUrlLength(int maxLength) {
+        if (maxLength < 1) {
+            throw new IllegalArgumentException("maxLength must be positive");
+        }
+        this.maxUrlLength = maxLength;
+    }
+
+    /**
+     * Limit how many of the requests a batch is split into are sent at once.
+     *
+     * @param maxRequests the most requests to send at once, defaults to 2
+     */
+    public void setMaxConcurrentRequests(int maxRequests) {
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests must be positive");
+        }
+        this.maxConcurrentRequests = maxRequests;
+    }
+
+    /**
+     * Limit how long placement opportunities wait to be sent while a
+     * {@link FlushPolicy} is set.  When the deadline passes, the queued
+     * opportunities are sent on their own, on a network lane of their own,
+     * rather than waiting for the next flush, which may be held up sending
+     * a large batch of behaviors.  Whenever queued data is sent,
+     * opportunities go first.
+     *
+     * @param deadline the longest an opportunity waits, defaults to 1 second
+     * @param timeUnit the unit of deadline
+     */
+    public void setOpportunityFlushDeadline(long deadline, TimeUnit timeUnit) {
+        if (deadline < 0) {
+            throw new IllegalArgumentException("deadline must not be negative");
+        }
+        this.opportunityFlushDeadlineMillis = timeUnit.toMillis(deadline);
+    }
+
+    /**
+     * Limit the share of each send taken by behaviors, so that a large
+     * backlog is sent over several smaller flushes rather than one long one.
+     * Behaviors left over are sent by the next flush, which a
+     * {@link FlushPolicy} schedules straight away, and are kept by the
+     * persistent queue until they are.
+     *
+     * @param maxBehaviors the most behaviors and key/value pairs sent by a
+     *                     flush; 0, the default, sends every queued one
+     */
+    public void setMaxBehaviorsPerFlush(int maxBehaviors) {
+        if (maxBehaviors < 0) {
+            throw new IllegalArgumentException("maxBehaviors must not be negative");
+        }
+        this.maxBehaviorsPerFlush = maxBehaviors;
     }
 
     /**
@@ -425,8 +913,8 @@ public class CrowdControl {
      * @param value the value
      */
     public void setRequestProperty(String name, String value) {
-        synchronized (headerParams) {
-            headerParams.put(name, value);
+        synchronized (headersLock) {
+            headers = headers.with(name, value);
         }
     }
 
@@ -438,7 +926,7 @@ public class CrowdControl {
      * Http Version, Character Set, or User Agent
      */
     public String getRequestProperty(String name) {
-        return headerParams.get(name);
+        return headers.get(name);
     }
 
     /**
@@ -462,11 +950,11 @@ public class CrowdControl {
     }
 
     private void setIdAndType(String mid, IdType idType) {
-        if (id == null) {
-            id = new Id();
-        }
-        this.id.mid = mid;
-        this.id.idType = idType;
+        // Replaced as a whole, as the id can be refreshed while in use
+        Id id = new Id();
+        id.mid = mid;
+        id.idType = idType;
+        this.id = id;
     }
 
     public IdType getIdType() {
@@ -490,41 +978,153 @@ public class CrowdControl {
             return;
         }
 
+        FrequencyCap cap = frequencyCap;
+        if (cap != null && !cap.admit(type, value)) {
+            Logger.event("capped type:", type, " and value:", value);
+            return;
+        }
+
         // AtomParameter is not immutable, so we'll queue them up and build the URL later
-        synchronized (queue) {
-            if (type.equals(KEY_PLACEMENT_ID)) {
-                queue.add(new AtomParameter(type, value, AtomParameter.Type.PLACEMENT_OPPS));
-            } else {
-                queue.add(new AtomParameter(type, value));
+        AtomParameter atom;
+        boolean opportunity = type.equals(KEY_PLACEMENT_ID);
+        if (opportunity) {
+            atom = new AtomParameter(type, value, AtomParameter.Type.PLACEMENT_OPPS);
+        } else {
+            atom = new AtomParameter(type, value);
+        }
+        if (!(opportunity ? opportunityQueue() : queue()).offer(atom)) {
+            if (cap != null) {
+                cap.refund(type, value);
             }
+            Logger.event("queue full, dropped type:", type, " and value:", value);
+            return;
         }
-        if (CrowdControl.debug)
-            Log.d(CrowdControl.LOG_TAG, "adds type:" + type + " and value:" + value);
+        // Journal only once queued, so an atom drained before it is journaled
+        // can at worst be replayed twice, never lost
+        if (persistentQueue != null) {
+            persistentQueue.append(atom);
+        }
+        MetricsRecorder.eventAdded();
+        onQueued(opportunity);
+        Logger.event("adds type:", type, " and value:", value);
     }
 
     /**
      * Add a behavior to track by id. This is only honored if the CLIENT_ID used to construct the library has access to the behavior with
      * the supplied id. This can be called multiple times to add multiple behaviors to track.
      * 
-     * This method, in turn, calls the {@link #add(String, String)} method,
-     * which will check the {@link #isLimitedAdTrackingEnabled()}.  If that
-     * method returns true in {@link #add(String, String)}, it will return
-     * without collecting any data.
+     * If the {@link #isLimitedAdTrackingEnabled()} returns true, this method
+     * will return without collecting any data.
+     * 
+     * The id is queued unboxed and is only converted to text when the queue
+     * is sent, so this method does not allocate.
      *
      * @param id Lotame behavior id
      */
     public void addBehavior(long id) {
-        add(KEY_BEHAVIOR_ID, String.valueOf(id));
+        if (isLimitedAdTrackingEnabled()) {
+            return;
+        }
+        FrequencyCap cap = frequencyCap;
+        if (cap != null && !cap.admitBehavior(id)) {
+            Logger.event("capped behavior:", id);
+            return;
+        }
+        if (!queue().offerBehavior(id)) {
+            if (cap != null) {
+                cap.refundBehavior(id);
+            }
+            Logger.event("queue full, dropped behavior:", id);
+            return;
+        }
+        if (persistentQueue != null) {
+            persistentQueue.append(AtomParameter.Type.DEFAULT, KEY_BEHAVIOR_ID, id);
+        }
+        MetricsRecorder.eventAdded();
+        onQueued(false);
+        Logger.event("adds behavior:", id);
     }
 
     /**
      * Track an opportunity against the placement with the supplied id. This can be called multiple times to track opportunities against
      * multiple placements.
+     * 
+     * Like {@link #addBehavior(long)}, this method does not allocate.
      *
      * @param id the id of the placement
      */
     public void addOpportunity(long id) {
-        add(KEY_PLACEMENT_ID, String.valueOf(id));
+        if (isLimitedAdTrackingEnabled()) {
+            return;
+        }
+        FrequencyCap cap = frequencyCap;
+        if (cap != null && !cap.admitOpportunity(id)) {
+            Logger.event("capped opportunity:", id);
+            return;
+        }
+        if (!opportunityQueue().offerOpportunity(id)) {
+            if (cap != null) {
+                cap.refundOpportunity(id);
+            }
+            Logger.event("queue full, dropped opportunity:", id);
+            return;
+        }
+        if (persistentQueue != null) {
+            persistentQueue.append(AtomParameter.Type.PLACEMENT_OPPS, KEY_PLACEMENT_ID, id);
+        }
+        MetricsRecorder.eventAdded();
+        onQueued(true);
+        Logger.event("adds opportunity:", id);
+    }
+
+    /**
+     * @return the queue, created on first use so that instances that never
+     * add data, such as those used only for audience extraction, do not
+     * allocate one
+     */
+    private AtomQueue queue() {
+        AtomQueue queue = this.queue;
+        if (queue == null) {
+            synchronized (queueLock) {
+                queue = this.queue;
+                if (queue == null) {
+                    queue = new AtomQueue(queueCapacity, overflowPolicy);
+                    this.queue = queue;
+                }
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * @return the queue of placement opportunities, created on first use
+     */
+    private AtomQueue opportunityQueue() {
+        AtomQueue queue = this.opportunityQueue;
+        if (queue == null) {
+            synchronized (queueLock) {
+                queue = this.opportunityQueue;
+                if (queue == null) {
+                    queue = new AtomQueue(queueCapacity, overflowPolicy);
+                    this.opportunityQueue = queue;
+                }
+            }
+        }
+        return queue;
+    }
+
+    private boolean isQueueEmpty() {
+        return getQueuedEventCount() == 0 && unsentBatch == null;
+    }
+
+    private void onQueued(boolean opportunity) {
+        BatchDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            if (opportunity) {
+                dispatcher.onOpportunityAdd(opportunityFlushDeadlineMillis);
+            }
+            dispatcher.onAdd(getQueuedEventCount());
+        }
     }
 
     /**
@@ -536,6 +1136,10 @@ public class CrowdControl {
      * 
      * If {@link #isInitialized()} returns false, the method will also return
      * null without making an extraction call.
+     * 
+     * If a cache time to live has been set with
+     * {@link #setAudienceCacheTtl(long, TimeUnit)}, cached responses are
+     * returned without waiting on the network.
      * @param timeout timeout value
      * @param timeUnit timeout value unit
      * @return String the string representation of a JSON object.
@@ -544,56 +1148,341 @@ public class CrowdControl {
     public String getAudienceJSON(long timeout, TimeUnit timeUnit) throws IOException {
 
         if (isLimitedAdTrackingEnabled()) {
-            if (CrowdControl.debug)
-                Log.d(CrowdControl.LOG_TAG, "Ad tracking is limited! getAudienceJSON returning blank result.");
+            Logger.d("Ad tracking is limited! getAudienceJSON returning blank result.");
             return null;
         }
 
-        String url = null;
-        if (enablePanoramaId) {
-            url = MessageFormat.format(protocol.getProtocString() +
-                            "://" + AE_SUBDOMAIN + getDomain() + "/5/pe=y/c={0}/mid={1}/rid={2}",
-                    String.valueOf(getAudienceExtractionClientId()), getId(), VALUE_YES);
-        } else {
-            url = MessageFormat.format(protocol.getProtocString() +
-                            "://" + AE_SUBDOMAIN + getDomain() + "/5/pe=y/c={0}/mid={1}",
-                    String.valueOf(getAudienceExtractionClientId()), getId());
-        }
-
-        SendOverHTTP sender = new SendOverHTTP(headerParams, CONNECTION_TIMEOUT);
-        sender.execute(url);
-        try {
-            return sender.get(timeout, timeUnit);
-        } catch (Exception e) {
-            if (CrowdControl.debug)
-                Log.e(CrowdControl.LOG_TAG, "Error retrieving audience data", e);
-            return null;
+        String url = buildAudienceUrl();
+        String cached = getCachedAudience(url, true);
+        if (cached != null) {
+            return cached;
         }
+        return fetchAudience(url, timeout, timeUnit);
     }
 
-
     /**
-     * Synchronously send the data to the Crowd Control servers. To send
-     * asynchronously, use {@link #bcpAsync()}.
+     * Synchronously retrieve audience membership as a parsed {@link Audience}.
+     * Unless the audience cache is enabled, the response is parsed as it is
+     * streamed in, without first being read into a String.
      * 
-     * If {@link #isLimitedAdTrackingEnabled()} returns true, this method will
-     * silently return without collecting any data.
+     * If {@link #isLimitedAdTrackingEnabled()} returns true, this method
+     * will return null without making an audience extraction call.
+     *
+     * @param timeout timeout value
+     * @param timeUnit timeout value unit
+     * @return the parsed audiences, or null if they could not be retrieved in time
+     * @throws IOException in case of trouble extracting audiences from Lotame edge servers
+     */
+    public Audience getAudience(long timeout, TimeUnit timeUnit) throws IOException {
+        if (isLimitedAdTrackingEnabled()) {
+            Logger.d("Ad tracking is limited! getAudience returning blank result.");
+            return null;
+        }
+
+        if (audienceCacheTtlMillis > 0) {
+            // The cache holds the raw response, so go through it
+            return publishAudience(getAudienceJSON(timeout, timeUnit));
+        }
+
+        final String url = buildAudienceUrl();
+        Future<Audience> request = parsedAudienceRequests.execute(url, new Callable<Audience>() {
+            @Override
+            public Audience call() throws IOException {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    return new HttpTransport(headers, CONNECTION_TIMEOUT).sendForAudience(url);
+                } finally {
+                    MetricsRecorder.audienceRequest(SystemClock.elapsedRealtime() - start);
+                }
+            }
+        }, NetworkExecutors.get(NetworkExecutors.Lane.AUDIENCE), new SingleFlight.Callback<Audience>() {
+            @Override
+            public void onComplete(Audience result, Exception error) {
+                if (result != null) {
+                    audience = result;
+                }
+            }
+        });
+        try {
+            return request.get(timeout, timeUnit);
+        } catch (Exception e) {
+            Logger.e("Error retrieving audience data", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the audiences retrieved by the most recent audience extraction
+     * call made by this instance, through any of the getAudience methods.
+     * This method never blocks or makes a network call, and the returned
+     * snapshot is immutable, so it is safe to call from any thread, e.g. for
+     * every ad request.  A refresh replaces the snapshot as a whole.
+     *
+     * @return the latest audiences, or null if none have been retrieved yet
+     */
+    public Audience getAudienceSnapshot() {
+        if (isLimitedAdTrackingEnabled()) {
+            return null;
+        }
+        return audience;
+    }
+
+    /**
+     * Asynchronously retrieve audience membership, without blocking the
+     * calling thread.  This method may be called from the main thread.  The
+     * JSON format is the same as for {@link #getAudienceJSON(long, TimeUnit)}.
      * 
-     * If {@link #isInitialized()} returns false, the method will also silently
-     * return without collecting any data.
+     * If {@link #isLimitedAdTrackingEnabled()} returns true, the listener
+     * receives null without an audience extraction call being made.
+     *
+     * @param listener notified on the main thread with the result, may be null
+     * @return a Future for the result.  Calling get() on it blocks, so it
+     * should not be called from the main thread.
+     */
+    public Future<String> getAudienceJSONAsync(final AudienceListener listener) {
+        if (isLimitedAdTrackingEnabled()) {
+            Logger.d("Ad tracking is limited! getAudienceJSONAsync returning blank result.");
+            return completedAudience(listener, null);
+        }
+
+        String url = buildAudienceUrl();
+        // Only the in-memory copy is read here; a response cached on disk by
+        // an earlier process is read on the network thread
+        String cached = getCachedAudience(url, false);
+        if (cached != null) {
+            return completedAudience(listener, cached);
+        }
+        SingleFlight.Callback<String> callback = null;
+        if (listener != null) {
+            callback = new SingleFlight.Callback<String>() {
+                @Override
+                public void onComplete(final String result, final Exception error) {
+                    getMainHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (error == null) {
+                                listener.onAudienceReceived(result);
+                            } else {
+                                listener.onAudienceError(error);
+                            }
+                        }
+                    });
+                }
+            };
+        }
+        return requestAudience(url, callback, audienceCacheTtlMillis > 0);
+    }
+
+    /**
+     * @param readDisk whether to read the response cached on disk when none
+     *                 is held in memory, which must not be done on the main thread
+     * @return the cached response, or null if the cache is disabled or holds
+     * nothing for this instance.  A stale response is returned while it is
+     * refreshed in the background.
+     */
+    private String getCachedAudience(String url, boolean readDisk) {
+        long ttlMillis = audienceCacheTtlMillis;
+        if (ttlMillis <= 0) {
+            return null;
+        }
+        AudienceCache cache = getAudienceCache(getContext());
+        AudienceCache.Entry entry = readDisk ? cache.get(url) : cache.peek(url);
+        if (entry == null) {
+            if (readDisk) {
+                MetricsRecorder.audienceCache(false);
+            }
+            return null;
+        }
+        MetricsRecorder.audienceCache(true);
+        if (!AudienceCache.isFresh(entry, ttlMillis)) {
+            // Serve the stale entry; concurrent refreshes share one request
+            Logger.d("Serving stale audiences while refreshing from ", url);
+            requestAudience(url, null, false);
+        }
+        publishAudience(entry.json);
+        return entry.json;
+    }
+
+    private static Future<String> completedAudience(final AudienceListener listener, final String json) {
+        FutureTask<String> completed = new FutureTask<>(new Callable<String>() {
+            @Override
+            public String call() {
+                return json;
+            }
+        });
+        completed.run();
+        if (listener != null) {
+            getMainHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onAudienceReceived(json);
+                }
+            });
+        }
+        return completed;
+    }
+
+    private String buildAudienceUrl() {
+        if (enablePanoramaId) {
+            return MessageFormat.format(protocol.getProtocString() +
+                            "://" + AE_SUBDOMAIN + getDomain() + "/5/pe=y/c={0}/mid={1}/rid={2}",
+                    String.valueOf(getAudienceExtractionClientId()), getId(), VALUE_YES);
+        } else {
+            return MessageFormat.format(protocol.getProtocString() +
+                            "://" + AE_SUBDOMAIN + getDomain() + "/5/pe=y/c={0}/mid={1}",
+                    String.valueOf(getAudienceExtractionClientId()), getId());
+        }
+    }
+
+    private String fetchAudience(String url, long timeout, TimeUnit timeUnit) {
+        try {
+            return requestAudience(url, null, false).get(timeout, timeUnit);
+        } catch (ExecutionException e) {
+            Logger.e("Error retrieving audience data", e.getCause());
+            return SendOverHTTP.SEND_FAILED;
+        } catch (Exception e) {
+            Logger.e("Error retrieving audience data", e);
+            return null;
+        }
+    }
+
+    /**
+     * Start an audience extraction call, or join the identical one already in
+     * flight.  The response is cached when the audience cache is enabled.
+     *
+     * @param readCache whether a fresh response cached on disk is returned
+     *                  instead of making the call
+     */
+    private Future<String> requestAudience(final String url, final SingleFlight.Callback<String> callback,
+                                           final boolean readCache) {
+        return audienceRequests.execute(url, new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                if (readCache) {
+                    AudienceCache.Entry entry = getAudienceCache(getContext()).get(url);
+                    // A stale entry is not used, so it is a miss
+                    boolean hit = entry != null && AudienceCache.isFresh(entry, audienceCacheTtlMillis);
+                    MetricsRecorder.audienceCache(hit);
+                    if (hit) {
+                        return entry.json;
+                    }
+                }
+                String json;
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    json = new HttpTransport(headers, CONNECTION_TIMEOUT).send(url);
+                } finally {
+                    MetricsRecorder.audienceRequest(SystemClock.elapsedRealtime() - start);
+                }
+                if (audienceCacheTtlMillis > 0 && isAudienceResponse(json)) {
+                    getAudienceCache(getContext()).put(url, json);
+                }
+                return json;
+            }
+        }, NetworkExecutors.get(NetworkExecutors.Lane.AUDIENCE), new SingleFlight.Callback<String>() {
+            @Override
+            public void onComplete(String result, Exception error) {
+                if (error == null) {
+                    publishAudience(result);
+                }
+                if (callback != null) {
+                    callback.onComplete(result, error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replace the audience snapshot with the parsed form of a response,
+     * unless it already holds that very response.
+     *
+     * @return the snapshot for the response, or null if it could not be parsed
+     */
+    private Audience publishAudience(String json) {
+        if (!isAudienceResponse(json)) {
+            return null;
+        }
+        Audience current = audience;
+        if (current != null && current.source == json) {
+            return current;
+        }
+        try {
+            Audience parsed = AudienceParser.parse(json);
+            audience = parsed;
+            return parsed;
+        } catch (IOException e) {
+            Logger.e("Error parsing audience data", e);
+            return null;
+        }
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+
+    private static boolean isAudienceResponse(String json) {
+        return json != null && !SendOverHTTP.SEND_FAILED.equals(json);
+    }
+
+    private static synchronized AudienceCache getAudienceCache(Context context) {
+        if (audienceCache == null) {
+            audienceCache = new AudienceCache(context == null ? null : context.getApplicationContext());
+        }
+        return audienceCache;
+    }
+
+
+    /**
+     * Synchronously send the data to the Crowd Control servers. To send
+     * asynchronously, use {@link #bcpAsync()}.
+     * 
+     * If {@link #isLimitedAdTrackingEnabled()} returns true, this method will
+     * silently return without collecting any data.
+     * 
+     * If {@link #isInitialized()} returns false, the method returns without
+     * sending; the queued data is sent in the background once the instance
+     * is initialized.
+     *
+     * If the device has no connectivity, or the servers have failed too often
+     * recently, the data stays queued and the method returns without sending.
+     * Failed requests are retried as the {@link RetryPolicy} allows, so this
+     * method may block for some time.
      *
      * @throws IOException thrown when there the call to Lotame edge servers fails
      */
-    public synchronized void bcp() throws IOException {
-        if (isLimitedAdTrackingEnabled() || !isInitialized()) {
+    public void bcp() throws IOException {
+        long start;
+        HttpTransport transport;
+        BcpBatch batch;
+        // Only the batch is built under the lock, so that opportunities can
+        // be sent while a large batch is in flight
+        synchronized (this) {
+            if (!isInitialized()) {
+                flushWhenInitialized = true;
+                return;
+            }
+            if (isLimitedAdTrackingEnabled() || !canTransmit()) {
+                return;
+            }
+            start = SystemClock.elapsedRealtime();
+            transport = newBcpTransport(NetworkExecutors.Lane.COLLECTION);
+            batch = buildBcpBatch(false);
+        }
+        if (batch.isEmpty()) {
+            commitPersistentQueue(batch.checkpoint);
             return;
         }
-        SendOverHTTP sender = new SendOverHTTP(headerParams, CONNECTION_TIMEOUT);
-        sender.send(buildBcpUrl());
-        synchronized (queue) {
-            queue.clear();
+        try {
+            transport.sendAll(batch.urls, batch.bodies, batch.delivered);
+        } catch (IOException e) {
+            retainUnsent(batch);
+            throw e;
         }
-        sessionTransmitted = true;
+        commitPersistentQueue(batch.checkpoint);
+        MetricsRecorder.flushed(batch.events, SystemClock.elapsedRealtime() - start);
     }
 
     /**
@@ -602,22 +1491,83 @@ public class CrowdControl {
      * If {@link #isLimitedAdTrackingEnabled()} returns true, this method will
      * return null without collecting any data.
      * 
-     * If {@link #isInitialized()} returns false, the method will also silently
-     * return without collecting any data.
+     * If {@link #isInitialized()} returns false, the method returns null; the
+     * queued data is sent once the instance is initialized.
+     * 
+     * If a {@link FlushPolicy} has been set, the send is handed to the
+     * background dispatcher, coalesced with other pending sends, and this
+     * method returns null.
+     *
+     * If the device has no connectivity the data stays queued, is sent once
+     * connectivity returns, and this method returns null.  It also returns
+     * null, keeping the data queued, while the servers have failed too often
+     * recently.
+     *
+     * If nothing is queued and the session's page view has already been
+     * sent, nothing is sent and this method returns null.
      *
      * @return AsyncTask the background task handling the transfer
      */
 
     public synchronized AsyncTask<String, Void, String> bcpAsync() {
-        if (isLimitedAdTrackingEnabled() || !isInitialized()) {
+        if (!isInitialized()) {
+            flushWhenInitialized = true;
             return null;
         }
-        SendOverHTTP sender = new SendOverHTTP(headerParams, CONNECTION_TIMEOUT);
-        sender.execute(buildBcpUrl());
-        synchronized (queue) {
-            queue.clear();
+        if (isLimitedAdTrackingEnabled()) {
+            return null;
         }
-        sessionTransmitted = true;
+        BatchDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            dispatcher.requestFlush();
+            return null;
+        }
+        if (!canTransmit()) {
+            return null;
+        }
+        return sendAsync(NetworkExecutors.Lane.COLLECTION, false);
+    }
+
+    /**
+     * Send the queued opportunities on their own, on the priority lane, so
+     * they are not held up behind a flush of queued behaviors.  Used by the
+     * background dispatcher when their deadline passes.
+     */
+    synchronized void flushOpportunities() {
+        AtomQueue opportunityQueue = this.opportunityQueue;
+        if (opportunityQueue == null || opportunityQueue.isEmpty()) {
+            return;
+        }
+        if (!isInitialized() || isLimitedAdTrackingEnabled() || !canTransmit()) {
+            return;
+        }
+        sendAsync(NetworkExecutors.Lane.PRIORITY, true);
+    }
+
+    private SendOverHTTP sendAsync(NetworkExecutors.Lane lane, boolean opportunitiesOnly) {
+        final long start = SystemClock.elapsedRealtime();
+        SendOverHTTP sender = new SendOverHTTP(newBcpTransport(lane));
+        final BcpBatch batch = buildBcpBatch(opportunitiesOnly);
+        if (batch.isEmpty()) {
+            commitPersistentQueue(batch.checkpoint);
+            return null;
+        }
+        sender.setBodies(batch.bodies);
+        sender.setDelivered(batch.delivered);
+        sender.setOnSuccess(new Runnable() {
+            @Override
+            public void run() {
+                commitPersistentQueue(batch.checkpoint);
+                MetricsRecorder.flushed(batch.events, SystemClock.elapsedRealtime() - start);
+            }
+        });
+        sender.setOnFailure(new Runnable() {
+            @Override
+            public void run() {
+                retainUnsent(batch);
+            }
+        });
+        sender.executeOnExecutor(NetworkExecutors.get(lane), batch.urls);
         return sender;
     }
 
@@ -625,56 +1575,485 @@ public class CrowdControl {
      * Send an HTTP or HTTPs request using the supplied URL pattern.
      * This pattern can contain two replacement macros, {deviceid} and {deviceidtype},
      * which will be replaced before performing the HTTP(s) call.
+     * Requests made before the instance is initialized are sent once it is.
+     *
+     * Patterns are compiled on first use and kept, so sending the same
+     * pattern again is cheap; see {@link RequestTemplate} to compile one
+     * up front.
      *
      * @param urlPattern patten to send to Lotame
      * @throws Exception on errors
      */
     public void sendRequest(String urlPattern) throws Exception {
+        sendRequest(RequestTemplate.cached(urlPattern));
+    }
 
-        if (isLimitedAdTrackingEnabled() || !isInitialized()) {
+    /**
+     * Send an HTTP or HTTPs request using the supplied template, with its
+     * {deviceid} and {deviceidtype} macros replaced by the id of this
+     * instance.  Requests made before the instance is initialized are sent
+     * once it is.  Requests identical to one sent within the window set with
+     * {@link #setRequestDedupeWindow(long, TimeUnit)} are skipped.
+     *
+     * @param template the compiled url pattern to send to Lotame
+     */
+    public void sendRequest(RequestTemplate template) {
+        synchronized (pendingRequests) {
+            if (!isInitialized()) {
+                pendingRequests.add(template);
+                return;
+            }
+        }
+        if (isLimitedAdTrackingEnabled()) {
             return;
         }
 
-        if(!getId().isEmpty() && !getIdType().toString().isEmpty()) {
+        Id id = this.id;
+        if (id == null || id.mid.isEmpty()) {
+            return;
+        }
+        final String url;
+        synchronized (requestUrlBuffer) {
+            requestUrlBuffer.setLength(0);
+            template.render(requestUrlBuffer, id.mid, id.idType.toString());
+            url = requestUrlBuffer.toString();
+        }
+        if (isDuplicateRequest(url)) {
+            Logger.d("Skipping request sent within the dedupe window: ", url);
+            return;
+        }
 
-            String newUrlPattern = urlPattern.replace("{deviceid}", getId()).replace("{deviceidtype}", getIdType().toString());
+        try {
+            NetworkExecutors.get(NetworkExecutors.Lane.COLLECTION).execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtime();
+                    try {
+                        requestTransport().send(url);
+                    } catch (Exception e) {
+                        Logger.e("Error Sending sendRequest", e);
+                    } finally {
+                        MetricsRecorder.sendRequest(SystemClock.elapsedRealtime() - start);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            Logger.e("Error Sending sendRequest", e);
+        }
+    }
 
-            try {
+    /**
+     * Skip requests identical to one sent within the supplied window, such as
+     * a sync pixel fired on every screen view.
+     *
+     * @param window   how long after a request identical ones are skipped; 0,
+     *                 the default, sends every request
+     * @param timeUnit the unit of window
+     */
+    public void setRequestDedupeWindow(long window, TimeUnit timeUnit) {
+        if (window < 0) {
+            throw new IllegalArgumentException("window must not be negative");
+        }
+        this.requestDedupeWindowMillis = timeUnit.toMillis(window);
+        if (requestDedupeWindowMillis == 0) {
+            synchronized (recentRequests) {
+                recentRequests.clear();
+            }
+        }
+    }
 
-                final Map<String, String> newUrlPatternParameters = new HashMap<>();
+    /**
+     * @return true if the url was sent within the dedupe window, otherwise
+     * records it as sent now
+     */
+    private boolean isDuplicateRequest(String url) {
+        long window = requestDedupeWindowMillis;
+        if (window <= 0) {
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        synchronized (recentRequests) {
+            Long sentAt = recentRequests.get(url);
+            if (sentAt != null && now - sentAt < window) {
+                return true;
+            }
+            // Re-inserted so that the map stays ordered by send time, and
+            // expired entries can be dropped from its head
+            recentRequests.remove(url);
+            recentRequests.put(url, now);
+            Iterator<Long> oldest = recentRequests.values().iterator();
+            while (oldest.hasNext() && now - oldest.next() >= window) {
+                oldest.remove();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the transport shared by every request sent through
+     * sendRequest().  Third party pixels are sent without the custom headers
+     * meant for the Lotame servers.
+     */
+    private HttpTransport requestTransport() {
+        HttpTransport transport = requestTransport;
+        if (transport == null) {
+            transport = new HttpTransport(RequestHeaders.EMPTY, CONNECTION_TIMEOUT);
+            requestTransport = transport;
+        }
+        return transport;
+    }
 
-                SendOverHTTP sender = new SendOverHTTP(newUrlPatternParameters, CONNECTION_TIMEOUT);
-                sender.execute(newUrlPattern);
+    /**
+     * The requests that carry one drain of the queues: GET urls, or, when
+     * posting, urls with the matching bodies.  Only the first request of a
+     * session carries pv; dp travels with the first placement opportunity.
+     */
+    private static final class BcpBatch {
+        final String[] urls;
+        final String[] bodies;
+        final int events;
+        /**
+         * The journal segments to delete once sent, or null if the drain
+         * left atoms journaled in them queued
+         */
+        final PersistentQueue.Checkpoint checkpoint;
+        /**
+         * Which of the requests have been sent
+         */
+        final boolean[] delivered;
+
+        BcpBatch(String[] urls, String[] bodies, int events, PersistentQueue.Checkpoint checkpoint) {
+            this.urls = urls;
+            this.bodies = bodies;
+            this.events = events;
+            this.checkpoint = checkpoint;
+            this.delivered = new boolean[urls.length];
+        }
+
+        /**
+         * @return true if there is nothing to send
+         */
+        boolean isEmpty() {
+            return urls.length == 0;
+        }
 
-            } catch (Exception e) {
-                if (CrowdControl.debug)
-                    Log.e(CrowdControl.LOG_TAG, "Error Sending sendRequest", e);
+        /**
+         * @param other a batch also left unsent, may be null
+         * @return the requests of this batch that were not delivered,
+         * followed by those of the other batch
+         */
+        BcpBatch unsent(BcpBatch other) {
+            List<String> urls = new ArrayList<>();
+            List<String> bodies = new ArrayList<>();
+            for (int i = 0; i < this.urls.length; i++) {
+                if (!delivered[i]) {
+                    urls.add(this.urls[i]);
+                    bodies.add(this.bodies == null ? null : this.bodies[i]);
+                }
+            }
+            boolean post = this.bodies != null;
+            int events = this.events;
+            PersistentQueue.Checkpoint checkpoint = this.checkpoint;
+            if (other != null) {
+                // Always a whole batch, as it has not been sent since
+                for (int i = 0; i < other.urls.length; i++) {
+                    urls.add(other.urls[i]);
+                    bodies.add(other.bodies == null ? null : other.bodies[i]);
+                }
+                post |= other.bodies != null;
+                events += other.events;
+                checkpoint = PersistentQueue.Checkpoint.span(checkpoint, other.checkpoint);
             }
+            return new BcpBatch(urls.toArray(new String[0]),
+                    post ? bodies.toArray(new String[0]) : null, events, checkpoint);
+        }
+    }
+
+    /**
+     * Keep the requests of a failed send to send again, first, with the next
+     * flush, so that the atoms drained into them are not lost.
+     */
+    private synchronized void retainUnsent(BcpBatch batch) {
+        if (isLimitedAdTrackingEnabled()) {
+            return;
         }
+        unsentBatch = batch.unsent(unsentBatch);
+        Logger.d("Keeping ", unsentBatch.urls.length, " unsent requests for the next flush");
     }
 
-    private synchronized String buildBcpUrl() {
+    /**
+     * @param opportunitiesOnly true to leave queued behaviors for a later flush
+     */
+    private synchronized BcpBatch buildBcpBatch(boolean opportunitiesOnly) {
+        BcpBatch unsent = unsentBatch;
+        if (unsent != null && !opportunitiesOnly) {
+            // Send what failed before anything newer; what is queued follows
+            // with the next flush
+            unsentBatch = null;
+            behaviorBacklog = true;
+            return unsent;
+        }
         /**
          * Merge the queued data to onto the base url
          */
-        StringBuilder builder = new StringBuilder(url);
-        append(builder, new AtomParameter(KEY_RAND_NUMBER, String.valueOf(random.nextInt(Integer.MAX_VALUE))));
-
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                AtomParameter param = queue.remove();
-                append(builder, param);
-                if (!placementsIncluded && AtomParameter.Type.PLACEMENT_OPPS.equals(param.getType())) {
-                    append(builder, new AtomParameter(KEY_COUNT_PLACEMENTS, CrowdControl.VALUE_YES));
-                    placementsIncluded = true;
-                }
+        boolean post = transmissionMode == TransmissionMode.POST_GZIP;
+        bcpUrlWriter.reset(post ? maxPostBodyLength
+                : maxUrlLength - bcpUrlPrefix.length() - BCP_URL_RESERVED_LENGTH);
+
+        AtomQueue queue = this.queue;
+        int behaviors = queue == null || opportunitiesOnly ? 0 : queue.size();
+        int maxBehaviors = maxBehaviorsPerFlush;
+        boolean complete = !opportunitiesOnly && (maxBehaviors == 0 || behaviors <= maxBehaviors);
+        // The journal can only be checkpointed by a drain that takes
+        // every atom journaled so far; otherwise it is left for the next
+        PersistentQueue.Checkpoint checkpoint = complete ? rollPersistentQueue() : null;
+        behaviorBacklog = !opportunitiesOnly && !complete;
+
+        // Only drain what is queued now, so that threads that keep adding
+        // cannot hold up the send
+        AtomQueue opportunityQueue = this.opportunityQueue;
+        int drained = opportunityQueue == null ? 0 : opportunityQueue.drain(opportunityQueue.size(), bcpUrlWriter);
+        if (queue != null && !opportunitiesOnly) {
+            drained += queue.drain(complete ? queue.size() : maxBehaviors, bcpUrlWriter);
+        }
+        boolean pageView = !sessionTransmitted;
+        List<String> chunks = bcpUrlWriter.chunks(pageView);
+        if (drained == 0 && !pageView) {
+            // Nothing to report: neither atoms nor the session's page view
+            return new BcpBatch(new String[0], post ? new String[0] : null, 0, checkpoint);
+        }
+        // The page view belongs to this batch from here on, so that a flush
+        // built while this one is in flight does not send it again.  If the
+        // send fails, the retained requests still carry it.
+        sessionTransmitted = true;
+
+        String[] urls = new String[chunks.size()];
+        String[] bodies = post ? new String[chunks.size()] : null;
+        StringBuilder builder = bcpUrlBuffer;
+        for (int i = 0; i < chunks.size(); i++) {
+            builder.setLength(0);
+            builder.append(bcpUrlPrefix);
+            BcpUrlEncoder.appendParameter(builder, KEY_RAND_NUMBER, random.nextInt(Integer.MAX_VALUE));
+            if (post) {
+                urls[i] = builder.toString();
+                builder.setLength(0);
+            }
+            builder.append(chunks.get(i));
+            if (post) {
+                bodies[i] = builder.toString();
+            } else {
+                urls[i] = builder.toString();
+            }
+        }
+        return new BcpBatch(urls, bodies, drained, checkpoint);
+    }
+
+    /**
+     * Writes drained atoms as bcp parameters, split into chunks no longer
+     * than a maximum length.  The placement count flag is written once per
+     * instance, with the first placement opportunity.
+     */
+    static final class BcpUrlWriter implements AtomQueue.Sink {
+        private final StringBuilder builder = new StringBuilder(256);
+        private final List<String> chunks = new ArrayList<>();
+        private int maxChunkLength;
+        private boolean placementsIncluded = false;
+
+        /**
+         * Start writing a new set of chunks.
+         *
+         * @param maxChunkLength the longest a chunk may be, unless a single atom is longer
+         */
+        void reset(int maxChunkLength) {
+            this.maxChunkLength = maxChunkLength;
+            builder.setLength(0);
+            chunks.clear();
+        }
+
+        /**
+         * @param pageView true to end the first chunk with the page view flag
+         * @return the chunks written since the reset: at least one, empty if
+         * no atoms were written and no page view requested
+         */
+        List<String> chunks(boolean pageView) {
+            chunks.add(builder.toString());
+            if (pageView) {
+                builder.setLength(0);
+                builder.append(chunks.get(0));
+                BcpUrlEncoder.appendParameter(builder, KEY_PAGE_VIEW, VALUE_YES);
+                chunks.set(0, builder.toString());
+            }
+            List<String> written = new ArrayList<>(chunks);
+            chunks.clear();
+            return written;
+        }
+
+        @Override
+        public void onAtom(AtomParameter atom) {
+            int start = builder.length();
+            BcpUrlEncoder.appendParameter(builder, atom.getKey(), atom.getValue());
+            if (AtomParameter.Type.PLACEMENT_OPPS.equals(atom.getType())) {
+                onPlacement();
             }
+            split(start);
         }
 
-        if (!sessionTransmitted) {
-            append(builder, new AtomParameter(KEY_PAGE_VIEW, VALUE_YES));
+        @Override
+        public void onBehavior(long id) {
+            int start = builder.length();
+            BcpUrlEncoder.appendParameter(builder, KEY_BEHAVIOR_ID, id);
+            split(start);
         }
-        return builder.toString();
+
+        @Override
+        public void onOpportunity(long id) {
+            int start = builder.length();
+            BcpUrlEncoder.appendParameter(builder, KEY_PLACEMENT_ID, id);
+            onPlacement();
+            split(start);
+        }
+
+        private void onPlacement() {
+            if (!placementsIncluded) {
+                BcpUrlEncoder.appendParameter(builder, KEY_COUNT_PLACEMENTS, VALUE_YES);
+                placementsIncluded = true;
+            }
+        }
+
+        /**
+         * Start a new chunk with the atom written from start if it made the
+         * current one too long.
+         */
+        private void split(int start) {
+            if (builder.length() > maxChunkLength && start > 0) {
+                chunks.add(builder.substring(0, start));
+                builder.delete(0, start);
+            }
+        }
+    }
+
+    private HttpTransport newBcpTransport(NetworkExecutors.Lane lane) {
+        HttpTransport transport = new HttpTransport(headers, CONNECTION_TIMEOUT);
+        transport.setConcurrency(NetworkExecutors.get(lane), maxConcurrentRequests);
+        RetryPolicy retryPolicy = this.retryPolicy;
+        if (retryPolicy != null) {
+            transport.setRetry(retryPolicy, circuitBreaker, ConnectivityMonitor.get(getContext()));
+        }
+        return transport;
+    }
+
+    /**
+     * @return true if queued data should be sent now.  If not, a send is
+     * arranged for when the device is back online, or for when the servers
+     * may be tried again.
+     */
+    private boolean canTransmit() {
+        ConnectivityMonitor connectivity = ConnectivityMonitor.get(getContext());
+        if (connectivity != null && !connectivity.isConnected()) {
+            if (!awaitingConnectivity) {
+                awaitingConnectivity = true;
+                Logger.d("No connectivity, keeping queued data until it returns");
+                connectivity.runWhenConnected(new Runnable() {
+                    @Override
+                    public void run() {
+                        awaitingConnectivity = false;
+                        if (!isQueueEmpty()) {
+                            bcpAsync();
+                        }
+                    }
+                });
+            }
+            return false;
+        }
+        CircuitBreaker circuitBreaker = this.circuitBreaker;
+        if (retryPolicy != null && !circuitBreaker.allowRequest()) {
+            long remaining = circuitBreaker.remainingOpenMillis();
+            Logger.d("Sends paused for ", remaining, "ms after repeated failures");
+            if (!awaitingCircuitBreaker) {
+                awaitingCircuitBreaker = true;
+                NetworkExecutors.timer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        awaitingCircuitBreaker = false;
+                        if (!isQueueEmpty()) {
+                            bcpAsync();
+                        }
+                    }
+                }, remaining, TimeUnit.MILLISECONDS);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Synchronously send whatever is queued, if anything.  Used by the
+     * background dispatcher.
+     *
+     * @return false if the instance is not yet able to send
+     */
+    boolean flushQueue() {
+        if (isLimitedAdTrackingEnabled()) {
+            return true;
+        }
+        if (!isInitialized()) {
+            return false;
+        }
+        if (isQueueEmpty()) {
+            return true;
+        }
+        if (retryPolicy != null && !circuitBreaker.allowRequest()) {
+            return false;
+        }
+        try {
+            bcp();
+        } catch (IOException e) {
+            Logger.e("Background flush failed", e);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the last flush was limited to a share of the queued
+     * behaviors and left some for the next one
+     */
+    boolean hasBehaviorBacklog() {
+        // While offline the backlog is sent once connectivity returns
+        return behaviorBacklog && !awaitingConnectivity;
+    }
+
+    /**
+     * Must be called immediately before the queues are drained.
+     */
+    private PersistentQueue.Checkpoint rollPersistentQueue() {
+        return persistentQueue == null ? null : persistentQueue.roll();
+    }
+
+    private void commitPersistentQueue(PersistentQueue.Checkpoint checkpoint) {
+        if (persistentQueue != null && checkpoint != null) {
+            persistentQueue.commit(checkpoint);
+        }
+    }
+
+    /**
+     * @return the number of atoms discarded so far because the queue was full.
+     * See {@link #setQueueLimits(int, OverflowPolicy)}.
+     */
+    public long getDroppedEventCount() {
+        AtomQueue queue = this.queue;
+        AtomQueue opportunityQueue = this.opportunityQueue;
+        return (queue == null ? 0 : queue.getDroppedCount())
+                + (opportunityQueue == null ? 0 : opportunityQueue.getDroppedCount());
+    }
+
+    /**
+     * @return the number of atoms queued and not yet sent
+     */
+    public int getQueuedEventCount() {
+        AtomQueue queue = this.queue;
+        AtomQueue opportunityQueue = this.opportunityQueue;
+        return (queue == null ? 0 : queue.size())
+                + (opportunityQueue == null ? 0 : opportunityQueue.size());
     }
 
     public Context getContext() {
@@ -761,24 +2140,11 @@ public class CrowdControl {
      */
     public void startSession() {
         sessionTransmitted = false;
-        if (CrowdControl.debug) Log.d(CrowdControl.LOG_TAG, "Starting new CrowdControl session");
-    }
-
-    private void appendParameter(AtomParameter elem) {
-        append(url, elem);
-    }
-
-    private void append(StringBuilder builder, AtomParameter elem) {
-        String value = elem.getValue();
-        try {
-            value = URLEncoder.encode(value, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            if (CrowdControl.debug)
-                Log.e(CrowdControl.LOG_TAG, "Could not url encode with UTF-8", e);
+        FrequencyCap cap = frequencyCap;
+        if (cap != null) {
+            cap.reset();
         }
-
-        builder.append(elem.getKey() + EQUAL
-                + ((elem == null || elem.getValue() == null) ? "" : value) + SLASH);
+        Logger.d("Starting new CrowdControl session");
     }
 
     /**
@@ -811,6 +2177,40 @@ public class CrowdControl {
         }
     }
 
+    /**
+     * How queued data is transmitted.
+     */
+    public enum TransmissionMode {
+        /**
+         * Every atom is encoded into the path of a single GET request.
+         */
+        GET,
+        /**
+         * The atoms are sent as the gzip compressed body of POST requests to
+         * the same url, split into several requests when the batch is larger
+         * than {@link #setMaxPostBodyLength(int)}.
+         */
+        POST_GZIP
+    }
+
+    /**
+     * What to do when an atom is added to a full queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest queued atom to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the atom being added.
+         */
+        DROP_NEWEST,
+        /**
+         * Wait until a send makes room.  Should not be used on the main thread.
+         */
+        BLOCK
+    }
+
     public String getDomain() {
         return domain;
     }
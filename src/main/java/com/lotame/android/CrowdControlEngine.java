@@ -0,0 +1,201 @@
+package com.lotame.android;
+
+import android.content.Context;
+
+import com.google.android.gms.ads.identifier.AdvertisingIdClient;
+import com.google.android.gms.ads.identifier.AdvertisingIdClient.Info;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * The state shared by every {@link CrowdControl} instance of the process.
+ *
+ * The device identity - the advertising id, or the hashed android id when
+ * that is unavailable, and the ad tracking preferences - is resolved once,
+ * on a single setup thread, however many instances are created.  Instances
+ * are told when it is first known and whenever a later refresh changes it.
+ * A cached identity is only trusted before the refresh if ad tracking was
+ * limited; otherwise nothing is sent until the preference has been checked
+ * again.
+ * The network executors, pooled connections, audience cache and
+ * connectivity monitor are likewise shared process-wide, so an instance
+ * holds little more than its client settings and its queue.
+ */
+final class CrowdControlEngine {
+    /**
+     * Notified when the identity is first known, and when it changes.
+     * Listeners are held weakly, so they must be referenced by whoever
+     * registers them.
+     */
+    interface IdentityListener {
+        void onIdentityChanged(IdentityCache.Entry identity);
+    }
+
+    private static CrowdControlEngine instance;
+
+    private final Context appContext;
+    private final List<WeakReference<IdentityListener>> listeners = new ArrayList<>();
+    private IdentityCache.Entry identity;
+
+    private CrowdControlEngine(Context appContext) {
+        this.appContext = appContext;
+    }
+
+    /**
+     * @param context any context of the app
+     * @return the engine of the process, resolving the identity if this is
+     * the first call
+     */
+    static synchronized CrowdControlEngine get(Context context) {
+        if (instance == null) {
+            Context appContext = context == null ? null : context.getApplicationContext();
+            instance = new CrowdControlEngine(appContext != null ? appContext : context);
+            instance.start();
+        }
+        return instance;
+    }
+
+    private void start() {
+        //
+        // On a separate Thread we will initialize the SDK, getting the id
+        // and determining whether or not we are in a limited ad tracking
+        // context.
+        //
+        Logger.d("Setting up the get id thread");
+        Runnable runnable = new Runnable() {
+
+            public void run() {
+                // The cache is read here too, as reading shared preferences
+                // may block on disk
+                IdentityCache identityCache = new IdentityCache(appContext);
+                IdentityCache.Entry cached = identityCache.get();
+                IdentityCache.Entry published = null;
+                if (cached != null && cached.limitedAdTracking) {
+                    // Honored straight away, so that instances drop what is
+                    // added while the preference is checked again.  A cached
+                    // opt in is not trusted: it may since have been revoked.
+                    Logger.d("Starting with limited ad tracking, refreshing the id in the background");
+                    setIdentity(cached);
+                    published = cached;
+                }
+
+                IdentityCache.Entry resolved = resolve();
+                if (!resolved.sameAs(cached)) {
+                    identityCache.put(resolved);
+                }
+                if (!resolved.sameAs(published)) {
+                    setIdentity(resolved);
+                }
+            }
+        };
+
+        //
+        // Instantiate and run the Thread that will attempt to gather the
+        // AdvertiserId data.
+        //
+        try {
+            Thread setupThread = new Thread(runnable, "CrowdControl-setup");
+            Logger.d("Starting Thread which will gather id and ad tracking preferences");
+            setupThread.start();
+        } catch (Exception e) {
+            Logger.e("Unable to run the thread which determines the id and ad tracking preferences", e);
+        }
+    }
+
+    private IdentityCache.Entry resolve() {
+        // Set the default values for the ad tracking availability
+        // and ad tracking preferences
+        boolean googleAdvertiserIdAvailable = false;
+        boolean limitedAdTrackingEnabled = false;
+
+        // Set the id to a default value that we will be able to use
+        // regardless of what happens in the try block.
+        String id = Utils.getUuid(appContext);
+        try {
+            Info adInfo = AdvertisingIdClient.getAdvertisingIdInfo(appContext);
+
+            if (adInfo != null) {
+                Logger.d("We have access to the Google Play, Info instance...");
+                googleAdvertiserIdAvailable = true;
+                limitedAdTrackingEnabled = adInfo.isLimitAdTrackingEnabled();
+                id = adInfo.getId();
+
+                Logger.d("AdvertiserId  = ", id);
+                Logger.d("isLimitedAdTrackingEnabled = ", limitedAdTrackingEnabled);
+            } else {
+                Logger.d("adInfo is null, unable to access the Google Play AdvertiserId data.  Using the hashed android id and unable to check the ad tracking preferences");
+            }
+
+        } catch (Exception e) {
+            Logger.d("Exception thrown attempting to access Google Play Service to retrieve AdvertiserId data; e = ", e);
+        }
+        return new IdentityCache.Entry(id, googleAdvertiserIdAvailable, limitedAdTrackingEnabled);
+    }
+
+    /**
+     * @return the current identity, or null until it is first known
+     */
+    synchronized IdentityCache.Entry getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Register a listener, notifying it straight away, on the calling thread,
+     * if the identity is already known.
+     */
+    void addListener(IdentityListener listener) {
+        IdentityCache.Entry current;
+        synchronized (this) {
+            listeners.add(new WeakReference<>(listener));
+            current = identity;
+        }
+        if (current != null) {
+            listener.onIdentityChanged(current);
+        }
+    }
+
+    private void setIdentity(IdentityCache.Entry resolved) {
+        List<IdentityListener> toNotify = new ArrayList<>();
+        synchronized (this) {
+            identity = resolved;
+            for (Iterator<WeakReference<IdentityListener>> it = listeners.iterator(); it.hasNext(); ) {
+                IdentityListener listener = it.next().get();
+                if (listener == null) {
+                    it.remove();
+                } else {
+                    toNotify.add(listener);
+                }
+            }
+        }
+        for (IdentityListener listener : toNotify) {
+            listener.onIdentityChanged(resolved);
+        }
+    }
+}
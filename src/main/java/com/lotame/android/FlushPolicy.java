@@ -0,0 +1,117 @@
+package com.lotame.android;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Thresholds that control when a CrowdControl instance with a flush policy
+ * transmits its queued data on its own.  The queue is flushed as soon as any
+ * one of the thresholds is reached:
+ *
+ * <ul>
+ * <li>{@link #getMaxBatchSize()} atoms are queued</li>
+ * <li>the oldest queued atom is {@link #getMaxBatchAgeMillis()} old</li>
+ * <li>the app is moved to the background, if {@link #isFlushOnBackground()}</li>
+ * </ul>
+ *
+ * Explicit calls to {@link CrowdControl#bcpAsync()} are coalesced so that at
+ * most one request is made every {@link #getMinFlushIntervalMillis()}.
+ */
+public class FlushPolicy
+{
+	public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+	public static final long DEFAULT_MAX_BATCH_AGE_MILLIS = 30 * 1000;
+	public static final long DEFAULT_MIN_FLUSH_INTERVAL_MILLIS = 5 * 1000;
+
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private long maxBatchAgeMillis = DEFAULT_MAX_BATCH_AGE_MILLIS;
+	private long minFlushIntervalMillis = DEFAULT_MIN_FLUSH_INTERVAL_MILLIS;
+	private boolean flushOnBackground = true;
+
+	/**
+	 * Construct a policy with the default thresholds.
+	 */
+	public FlushPolicy()
+	{
+		super();
+	}
+
+	public FlushPolicy(int maxBatchSize, long maxBatchAgeMillis, long minFlushIntervalMillis, boolean flushOnBackground)
+	{
+		super();
+		this.setMaxBatchSize(maxBatchSize);
+		this.setMaxBatchAgeMillis(maxBatchAgeMillis);
+		this.setMinFlushIntervalMillis(minFlushIntervalMillis);
+		this.setFlushOnBackground(flushOnBackground);
+	}
+
+	public int getMaxBatchSize()
+	{
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize)
+	{
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive");
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getMaxBatchAgeMillis()
+	{
+		return maxBatchAgeMillis;
+	}
+
+	public void setMaxBatchAgeMillis(long maxBatchAgeMillis)
+	{
+		if (maxBatchAgeMillis < 0) {
+			throw new IllegalArgumentException("maxBatchAgeMillis must not be negative");
+		}
+		this.maxBatchAgeMillis = maxBatchAgeMillis;
+	}
+
+	public long getMinFlushIntervalMillis()
+	{
+		return minFlushIntervalMillis;
+	}
+
+	public void setMinFlushIntervalMillis(long minFlushIntervalMillis)
+	{
+		if (minFlushIntervalMillis < 0) {
+			throw new IllegalArgumentException("minFlushIntervalMillis must not be negative");
+		}
+		this.minFlushIntervalMillis = minFlushIntervalMillis;
+	}
+
+	public boolean isFlushOnBackground()
+	{
+		return flushOnBackground;
+	}
+
+	public void setFlushOnBackground(boolean flushOnBackground)
+	{
+		this.flushOnBackground = flushOnBackground;
+	}
+}
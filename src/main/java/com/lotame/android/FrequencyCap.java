@@ -0,0 +1,345 @@
+package com.lotame.android;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Limits how many times the same event is queued in a session.
+ *
+ * Behaviors and opportunities are counted by id, exactly; other atoms by a
+ * 64 bit fingerprint of their key and value, so distinct atoms are only
+ * merged on a fingerprint collision, which is vanishingly unlikely at the
+ * number of distinct events a session sees.  Counts live in open addressing
+ * tables of primitives, so checking an event does not allocate, and are
+ * claimed and incremented with compare-and-set, so threads adding events
+ * never wait on each other; only growing a table takes a lock.
+ *
+ * An event is charged when it is admitted, and refunded if it could not be
+ * queued after all, so that only queued events count towards the cap.
+ *
+ * Once {@link #MAX_KEYS} distinct events have been seen in a session,
+ * further new events are let through uncounted rather than dropped.
+ */
+final class FrequencyCap {
+    static final int MAX_KEYS = 4096;
+
+    private final int maxPerKey;
+    private final Counts behaviors = new Counts();
+    private final Counts opportunities = new Counts();
+    private final Counts atoms = new Counts();
+
+    /**
+     * @param maxPerKey how many times each event may be queued per session
+     */
+    FrequencyCap(int maxPerKey) {
+        this.maxPerKey = maxPerKey;
+    }
+
+    /**
+     * @return true if the behavior is under its cap, counting it
+     */
+    boolean admitBehavior(long id) {
+        return behaviors.increment(id) <= maxPerKey;
+    }
+
+    /**
+     * @return true if the opportunity is under its cap, counting it
+     */
+    boolean admitOpportunity(long id) {
+        return opportunities.increment(id) <= maxPerKey;
+    }
+
+    /**
+     * @return true if the atom is under its cap, counting it
+     */
+    boolean admit(String key, String value) {
+        return atoms.increment(fingerprint(key, value)) <= maxPerKey;
+    }
+
+    /**
+     * Uncount a behavior admitted by {@link #admitBehavior(long)} that was not queued.
+     */
+    void refundBehavior(long id) {
+        behaviors.decrement(id);
+    }
+
+    /**
+     * Uncount an opportunity admitted by {@link #admitOpportunity(long)} that was not queued.
+     */
+    void refundOpportunity(long id) {
+        opportunities.decrement(id);
+    }
+
+    /**
+     * Uncount an atom admitted by {@link #admit(String, String)} that was not queued.
+     */
+    void refund(String key, String value) {
+        atoms.decrement(fingerprint(key, value));
+    }
+
+    /**
+     * Start counting afresh, at the start of a session.
+     */
+    void reset() {
+        behaviors.clear();
+        opportunities.clear();
+        atoms.clear();
+    }
+
+    /**
+     * 64 bit FNV-1a over the key, a separator and the value, finished with
+     * the murmur3 mixer to spread the bits used to pick a slot
+     */
+    static long fingerprint(String key, String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = key.length(); i < n; i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ 0xffff) * 0x100000001b3L;
+        if (value != null) {
+            for (int i = 0, n = value.length(); i < n; i++) {
+                h = (h ^ value.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Counts per long key, with linear probing.  Zero marks an empty slot,
+     * so the count of key zero is kept apart.
+     *
+     * A key is claimed by setting its slot with compare-and-set, and its
+     * count is then incremented the same way.  To grow, the table is copied
+     * under a lock, every slot of the old one being marked as moved first;
+     * a thread that meets a moved slot starts over with the new table, so no
+     * count is lost.
+     */
+    private static final class Counts {
+        private static final int INITIAL_CAPACITY = 64;
+        /**
+         * Marks a key slot or a count that has been copied to a larger table
+         */
+        private static final long MOVED_KEY = Long.MIN_VALUE;
+        private static final int MOVED_COUNT = -1;
+
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        private final AtomicInteger zeroCount = new AtomicInteger();
+
+        private static final class Table {
+            final AtomicLongArray keys;
+            final AtomicIntegerArray counts;
+            final AtomicInteger size = new AtomicInteger();
+
+            Table(int capacity) {
+                keys = new AtomicLongArray(capacity);
+                counts = new AtomicIntegerArray(capacity);
+            }
+        }
+
+        /**
+         * @return the count of the key including this occurrence, or 1 for a
+         * new key once the table is full
+         */
+        int increment(long key) {
+            if (key == 0) {
+                return add(zeroCount, 1);
+            }
+            if (key == MOVED_KEY) {
+                // Fold the marker into a neighbouring key rather than lose it
+                key = MOVED_KEY + 1;
+            }
+            while (true) {
+                Table t = table;
+                int slot = claim(t, key);
+                if (slot == -1) {
+                    // Full: let it through uncounted
+                    return 1;
+                }
+                if (slot >= 0) {
+                    int count = add(t.counts, slot, 1);
+                    if (count != MOVED_COUNT) {
+                        return count;
+                    }
+                }
+                awaitGrowth(t);
+            }
+        }
+
+        void decrement(long key) {
+            if (key == 0) {
+                add(zeroCount, -1);
+                return;
+            }
+            if (key == MOVED_KEY) {
+                key = MOVED_KEY + 1;
+            }
+            while (true) {
+                Table t = table;
+                int slot = find(t, key);
+                if (slot == -1) {
+                    return;
+                }
+                if (slot >= 0 && add(t.counts, slot, -1) != MOVED_COUNT) {
+                    return;
+                }
+                awaitGrowth(t);
+            }
+        }
+
+        /**
+         * @return the slot of the key, claiming a free one if it is new;
+         * -1 if it is new and no more keys may be counted, -2 if the table
+         * is being grown
+         */
+        private int claim(Table t, long key) {
+            int mask = t.keys.length() - 1;
+            int slot = (int) mix(key) & mask;
+            while (true) {
+                long current = t.keys.get(slot);
+                if (current == key) {
+                    return slot;
+                }
+                if (current == MOVED_KEY) {
+                    return -2;
+                }
+                if (current == 0) {
+                    if (t.size.get() >= MAX_KEYS) {
+                        return -1;
+                    }
+                    if (t.keys.compareAndSet(slot, 0, key)) {
+                        if (t.size.incrementAndGet() * 2 > t.keys.length()) {
+                            grow(t);
+                        }
+                        return slot;
+                    }
+                    // Lost the slot to another key; look at it again
+                    continue;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * @return the slot of the key, -1 if it is not counted, -2 if the
+         * table is being grown
+         */
+        private static int find(Table t, long key) {
+            int mask = t.keys.length() - 1;
+            int slot = (int) mix(key) & mask;
+            while (true) {
+                long current = t.keys.get(slot);
+                if (current == key) {
+                    return slot;
+                }
+                if (current == MOVED_KEY) {
+                    return -2;
+                }
+                if (current == 0) {
+                    return -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        /**
+         * @return the new count, saturating at zero and Integer.MAX_VALUE,
+         * or MOVED_COUNT if the count has been moved to a larger table
+         */
+        private static int add(AtomicIntegerArray counts, int slot, int delta) {
+            while (true) {
+                int count = counts.get(slot);
+                if (count == MOVED_COUNT) {
+                    return MOVED_COUNT;
+                }
+                int next = delta > 0 ? (count == Integer.MAX_VALUE ? count : count + 1) : Math.max(0, count - 1);
+                if (counts.compareAndSet(slot, count, next)) {
+                    return next;
+                }
+            }
+        }
+
+        private static int add(AtomicInteger counter, int delta) {
+            while (true) {
+                int count = counter.get();
+                int next = delta > 0 ? (count == Integer.MAX_VALUE ? count : count + 1) : Math.max(0, count - 1);
+                if (counter.compareAndSet(count, next)) {
+                    return next;
+                }
+            }
+        }
+
+        private synchronized void grow(Table old) {
+            if (table != old) {
+                return;
+            }
+            int capacity = old.keys.length();
+            Table grown = new Table(capacity * 2);
+            int mask = capacity * 2 - 1;
+            int size = 0;
+            for (int i = 0; i < capacity; i++) {
+                long key = old.keys.getAndSet(i, MOVED_KEY);
+                if (key == 0) {
+                    continue;
+                }
+                int count = old.counts.getAndSet(i, MOVED_COUNT);
+                int slot = (int) mix(key) & mask;
+                while (grown.keys.get(slot) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                grown.keys.set(slot, key);
+                grown.counts.set(slot, count);
+                size++;
+            }
+            grown.size.set(size);
+            table = grown;
+        }
+
+        /**
+         * Wait for another thread to finish growing the table.
+         */
+        private void awaitGrowth(Table old) {
+            while (table == old) {
+                Thread.yield();
+            }
+        }
+
+        synchronized void clear() {
+            table = new Table(INITIAL_CAPACITY);
+            zeroCount.set(0);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.lotame.android;
+
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Sends requests to Crowd Control and third party servers synchronously,
+ * on the calling thread.  Unlike an AsyncTask it can be configured once and
+ * reused for any number of sends, from any number of threads.
+ */
+class HttpTransport {
+    private static final int DISCARD_BUFFER_SIZE = 512;
+    private static final int READ_BUFFER_SIZE = 2048;
+    private static final String CHARSET_PARAM = "charset=";
+    private static final String GET = "GET";
+    private static final String POST = "POST";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Per thread read buffer, reused across responses
+     */
+    private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[READ_BUFFER_SIZE];
+        }
+    };
+
+    private final RequestHeaders headers;
+    private final int connectionTimeout;
+    private Executor executor;
+    private int maxConcurrentRequests = 1;
+    private RetryPolicy retryPolicy;
+    private CircuitBreaker circuitBreaker;
+    private ConnectivityMonitor connectivity;
+
+    /**
+     * @param headers           custom request headers
+     * @param connectionTimeout the connect and read timeout in milliseconds
+     */
+    HttpTransport(RequestHeaders headers, int connectionTimeout) {
+        this.headers = headers;
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * GET a url once, without retrying.
+     *
+     * @param url the url to get
+     * @return the response
+     * @throws IOException if the request fails
+     */
+    String send(String url) throws IOException {
+        return readResponse(open(url, GET), url);
+    }
+
+    /**
+     * Send each url, POSTing its body, if any, and GETting it otherwise.  Up
+     * to the number of requests set with {@link #setConcurrency(Executor, int)}
+     * are sent at once, the calling thread sending its share.
+     *
+     * @param urls   the urls to send
+     * @param bodies the uncompressed bodies, one per url, or null to GET every url;
+     *               a null entry means the url is sent with GET
+     * @return the response to the last url
+     * @throws IOException if any of the requests fails; those not yet started are not sent
+     */
+    String sendAll(String[] urls, String[] bodies) throws IOException {
+        return sendAll(urls, bodies, null);
+    }
+
+    /**
+     * As {@link #sendAll(String[], String[])}, recording which requests were
+     * sent so that those that were not can be sent again.
+     *
+     * @param delivered set to true for each url sent successfully, may be null
+     */
+    String sendAll(final String[] urls, final String[] bodies, final boolean[] delivered) throws IOException {
+        final String[] responses = new String[urls.length];
+        int helpers = Math.min(maxConcurrentRequests, urls.length) - 1;
+        if (helpers <= 0 || executor == null) {
+            for (int i = 0; i < urls.length; i++) {
+                responses[i] = send(urls, bodies, i);
+                if (delivered != null) {
+                    delivered[i] = true;
+                }
+            }
+            return urls.length == 0 ? null : responses[urls.length - 1];
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch sent = new CountDownLatch(urls.length);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < urls.length) {
+                    try {
+                        if (failure.get() == null) {
+                            responses[i] = send(urls, bodies, i);
+                            if (delivered != null) {
+                                delivered[i] = true;
+                            }
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        sent.countDown();
+                    }
+                }
+            }
+        };
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // The calling thread sends whatever the helpers do not
+                break;
+            }
+        }
+        // Helpers that start late find nothing left, so this only waits for
+        // requests that are already being sent
+        worker.run();
+        try {
+            sent.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for requests in flight");
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return responses[urls.length - 1];
+    }
+
+    /**
+     * Send one of the urls, retrying as the retry policy allows.
+     */
+    private String send(String[] urls, String[] bodies, int i) throws IOException {
+        // Compressed once, however often it is retried
+        byte[] payload = bodies != null && bodies[i] != null ? gzip(bodies[i]) : null;
+        for (int attempt = 1; ; attempt++) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                String response;
+                if (payload != null) {
+                    response = post(urls[i], payload);
+                } else {
+                    response = send(urls[i]);
+                }
+                MetricsRecorder.request(SystemClock.elapsedRealtime() - start, true);
+                MetricsRecorder.bytesSent(urls[i].length() + (payload == null ? 0 : payload.length));
+                if (circuitBreaker != null) {
+                    circuitBreaker.onSuccess();
+                }
+                return response;
+            } catch (IOException e) {
+                MetricsRecorder.request(SystemClock.elapsedRealtime() - start, false);
+                if (circuitBreaker != null && isServerFailure(e)) {
+                    circuitBreaker.onFailure();
+                }
+                if (!shouldRetry(e, attempt)) {
+                    throw e;
+                }
+                MetricsRecorder.retry();
+                long backoff = retryPolicy.backoffMillis(attempt, RANDOM);
+                if (Logger.isEnabled())
+                    Logger.d("Attempt " + attempt + " failed, retrying in " + backoff + "ms", e);
+                pause(backoff);
+            }
+        }
+    }
+
+    private boolean shouldRetry(IOException e, int attempt) {
+        if (retryPolicy == null || attempt >= retryPolicy.getMaxAttempts()) {
+            return false;
+        }
+        if (!isServerFailure(e)) {
+            return false;
+        }
+        return circuitBreaker == null || circuitBreaker.allowRequest();
+    }
+
+    /**
+     * @return true if the failure is down to the server or the network:
+     * an I/O error, a 5xx, 408 or 429; false for any other 4xx, which
+     * retrying would not fix
+     */
+    private static boolean isServerFailure(IOException e) {
+        return !(e instanceof HttpStatusException) || ((HttpStatusException) e).isRetryable();
+    }
+
+    /**
+     * Wait out a backoff, then for connectivity if the device has none.
+     */
+    private void pause(long backoffMillis) throws IOException {
+        try {
+            Thread.sleep(backoffMillis);
+            if (connectivity != null && !connectivity.awaitConnected(retryPolicy.getMaxBackoffMillis())) {
+                throw new IOException("No connectivity");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry");
+        }
+    }
+
+    /**
+     * POST a gzip compressed body.
+     *
+     * @param url     the url to post to
+     * @param payload the compressed body
+     * @return the response
+     * @throws IOException if the request fails
+     */
+    private String post(String url, byte[] payload) throws IOException {
+        HttpURLConnection conn = open(url, POST);
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        conn.setRequestProperty("Content-Encoding", "gzip");
+        conn.setFixedLengthStreamingMode(payload.length);
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(payload);
+        } finally {
+            out.close();
+        }
+        Logger.d("Posted ", payload.length, " compressed bytes");
+        return readResponse(conn, url);
+    }
+
+    private static byte[] gzip(String body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length() / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(body.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private String readResponse(HttpURLConnection conn, String url) throws IOException {
+        StringBuilder response = new StringBuilder();
+
+        InputStream in = getInputStream(conn);
+        Reader reader = new InputStreamReader(in, charsetOf(conn));
+        try {
+            // Line breaks are dropped, as they always have been
+            char[] buffer = BUFFER.get();
+            for (int read = reader.read(buffer); read != -1; read = reader.read(buffer)) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    char c = buffer[i];
+                    if (c == '\n' || c == '\r') {
+                        response.append(buffer, start, i - start);
+                        start = i + 1;
+                    }
+                }
+                response.append(buffer, start, read - start);
+            }
+            Logger.d(conn.getRequestMethod(), " success from ", url);
+        } finally {
+            reader.close();
+        }
+
+        return response.toString();
+    }
+
+    /**
+     * Perform an audience extraction call, parsing the response as it is
+     * streamed in rather than reading it into a String first.
+     *
+     * @param url the audience extraction url
+     * @return the parsed response
+     * @throws IOException if the call fails or the response cannot be parsed
+     */
+    Audience sendForAudience(String url) throws IOException {
+        HttpURLConnection conn = open(url, GET);
+        InputStream in = getInputStream(conn);
+        try {
+            Audience audience = AudienceParser.parse(new InputStreamReader(in, charsetOf(conn)));
+            Logger.d("GET success from ", url);
+            return audience;
+        } finally {
+            // Consume any trailing bytes so the connection can be reused
+            discard(in);
+        }
+    }
+
+    private HttpURLConnection open(String url, String method) throws IOException {
+        Logger.d("Attempt ", method, " to ", url);
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod(method);
+        conn.setUseCaches(false);
+        conn.setConnectTimeout(connectionTimeout);
+        conn.setReadTimeout(connectionTimeout);
+
+        headers.applyTo(conn);
+
+        conn.setRequestProperty("User-Agent", "Crowd Control Android SDK");
+        conn.setRequestProperty("Accept-Charset", "utf-8");
+        return conn;
+    }
+
+    /**
+     * The connection is deliberately never disconnected: reading the body to
+     * the end and closing the stream hands the socket back to the
+     * HttpURLConnection pool, so the next request to the same host skips the
+     * TCP and TLS handshakes.
+     */
+    private static InputStream getInputStream(HttpURLConnection conn) throws IOException {
+        try {
+            return conn.getInputStream();
+        } catch (IOException e) {
+            int status = responseCodeOf(conn);
+            discard(conn.getErrorStream());
+            if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new HttpStatusException(status, e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return the status of the response, -1 if there is none
+     */
+    private static int responseCodeOf(HttpURLConnection conn) {
+        try {
+            return conn.getResponseCode();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the charset declared by the response, UTF-8 if none or an unsupported one is declared
+     */
+    private static Charset charsetOf(HttpURLConnection conn) {
+        String contentType = conn.getContentType();
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, CHARSET_PARAM, 0, CHARSET_PARAM.length())) {
+                    String name = param.substring(CHARSET_PARAM.length()).replace("\"", "").trim();
+                    try {
+                        return Charset.forName(name);
+                    } catch (Exception e) {
+                        Logger.d("Unsupported response charset ", name);
+                    }
+                }
+            }
+        }
+        return UTF_8;
+    }
+
+    /**
+     * Read an error response body to the end so the connection can be reused.
+     */
+    private static void discard(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = new byte[DISCARD_BUFFER_SIZE];
+        try {
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Allow {@link #sendAll(String[], String[])} to send several requests at once.
+     *
+     * @param executor              runs the requests beyond the first
+     * @param maxConcurrentRequests the most requests to send at once
+     */
+    void setConcurrency(Executor executor, int maxConcurrentRequests) {
+        this.executor = executor;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Retry failed requests.
+     *
+     * @param retryPolicy    how often and when to retry, or null to make a single attempt
+     * @param circuitBreaker tracks failures of the endpoint, may be null
+     * @param connectivity   used to wait for connectivity before a retry, may be null
+     */
+    void setRetry(RetryPolicy retryPolicy, CircuitBreaker circuitBreaker, ConnectivityMonitor connectivity) {
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.connectivity = connectivity;
+    }
+}
@@ -0,0 +1,95 @@
+package com.lotame.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Remembers the device identity resolved by the last setup, in shared
+ * preferences, so that a new process honors limited ad tracking straight
+ * away while the identity is resolved again in the background.
+ */
+class IdentityCache {
+    private static final String PREFS_NAME = "com.lotame.android.identity";
+    private static final String KEY_ID = "id";
+    private static final String KEY_GOOGLE_ADVERTISER_ID_AVAILABLE = "gaid";
+    private static final String KEY_LIMITED_AD_TRACKING = "lat";
+
+    /**
+     * A resolved identity.  The id is the advertising id if it was available,
+     * and the hashed android id otherwise.
+     */
+    static final class Entry {
+        final String id;
+        final boolean googleAdvertiserIdAvailable;
+        final boolean limitedAdTracking;
+
+        Entry(String id, boolean googleAdvertiserIdAvailable, boolean limitedAdTracking) {
+            this.id = id;
+            this.googleAdvertiserIdAvailable = googleAdvertiserIdAvailable;
+            this.limitedAdTracking = limitedAdTracking;
+        }
+
+        boolean sameAs(Entry other) {
+            // The advertising id can be null
+            return other != null && (id == null ? other.id == null : id.equals(other.id))
+                    && googleAdvertiserIdAvailable == other.googleAdvertiserIdAvailable
+                    && limitedAdTracking == other.limitedAdTracking;
+        }
+    }
+
+    private final SharedPreferences prefs;
+
+    IdentityCache(Context context) {
+        this.prefs = context == null ? null : context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the last identity saved, or null if there is none
+     */
+    Entry get() {
+        if (prefs == null) {
+            return null;
+        }
+        String id = prefs.getString(KEY_ID, null);
+        if (id == null) {
+            return null;
+        }
+        return new Entry(id, prefs.getBoolean(KEY_GOOGLE_ADVERTISER_ID_AVAILABLE, false),
+                prefs.getBoolean(KEY_LIMITED_AD_TRACKING, false));
+    }
+
+    void put(Entry entry) {
+        if (prefs == null || entry.id == null) {
+            return;
+        }
+        prefs.edit()
+                .putString(KEY_ID, entry.id)
+                .putBoolean(KEY_GOOGLE_ADVERTISER_ID_AVAILABLE, entry.googleAdvertiserIdAvailable)
+                .putBoolean(KEY_LIMITED_AD_TRACKING, entry.limitedAdTracking)
+                .apply();
+    }
+}
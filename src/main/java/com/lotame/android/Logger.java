@@ -0,0 +1,174 @@
+package com.lotame.android;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * The SDK's logging facade.
+ *
+ * Every method returns after a single volatile read while logging is
+ * disabled, and messages are only put together once they are known to be
+ * logged: callers pass the parts of a message rather than concatenating
+ * them.  Per-event messages go through {@link #event(String, long)} and
+ * friends, which can further be sampled down with
+ * {@link CrowdControl#setLogSampling(int)}.
+ *
+ * Apps can strip the debug messages from release builds altogether with R8:
+ * <pre>
+ * -assumenosideeffects class com.lotame.android.Logger {
+ *     static void d(...);
+ *     static void event(...);
+ * }
+ * </pre>
+ */
+final class Logger {
+    static volatile boolean enabled = false;
+    private static volatile CrowdControlLogger logger;
+    private static volatile int sampling = 1;
+    private static final AtomicInteger events = new AtomicInteger();
+
+    private Logger() {
+    }
+
+    /**
+     * For messages that are expensive to build: check first, then build.
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void setLogger(CrowdControlLogger logger) {
+        Logger.logger = logger;
+    }
+
+    static void setSampling(int oneIn) {
+        sampling = oneIn;
+    }
+
+    static void d(String message) {
+        if (enabled) {
+            log(Log.DEBUG, message, null);
+        }
+    }
+
+    static void d(String prefix, Object arg) {
+        if (enabled) {
+            log(Log.DEBUG, prefix + arg, null);
+        }
+    }
+
+    static void d(String prefix, long arg) {
+        if (enabled) {
+            log(Log.DEBUG, prefix + arg, null);
+        }
+    }
+
+    static void d(String prefix, Object arg, String suffix) {
+        if (enabled) {
+            log(Log.DEBUG, prefix + arg + suffix, null);
+        }
+    }
+
+    static void d(String prefix, Object arg, String infix, Object arg2) {
+        if (enabled) {
+            log(Log.DEBUG, prefix + arg + infix + arg2, null);
+        }
+    }
+
+    static void d(String message, Throwable throwable) {
+        if (enabled) {
+            log(Log.DEBUG, message, throwable);
+        }
+    }
+
+    static void w(String prefix, Object arg) {
+        if (enabled) {
+            log(Log.WARN, prefix + arg, null);
+        }
+    }
+
+    static void e(String message) {
+        if (enabled) {
+            log(Log.ERROR, message, null);
+        }
+    }
+
+    static void e(String message, Throwable throwable) {
+        if (enabled) {
+            log(Log.ERROR, message, throwable);
+        }
+    }
+
+    static void e(String prefix, Object arg, Throwable throwable) {
+        if (enabled) {
+            log(Log.ERROR, prefix + arg, throwable);
+        }
+    }
+
+    /**
+     * A debug message logged for every event, subject to sampling.
+     */
+    static void event(String prefix, long arg) {
+        if (enabled && sampled()) {
+            log(Log.DEBUG, prefix + arg, null);
+        }
+    }
+
+    /**
+     * A debug message logged for every event, subject to sampling.
+     */
+    static void event(String prefix, Object arg, String infix, Object arg2) {
+        if (enabled && sampled()) {
+            log(Log.DEBUG, prefix + arg + infix + arg2, null);
+        }
+    }
+
+    private static boolean sampled() {
+        int oneIn = sampling;
+        return oneIn <= 1 || events.incrementAndGet() % oneIn == 0;
+    }
+
+    private static void log(int priority, String message, Throwable throwable) {
+        CrowdControlLogger logger = Logger.logger;
+        if (logger != null) {
+            logger.log(priority, CrowdControl.LOG_TAG, message, throwable);
+            return;
+        }
+        switch (priority) {
+            case Log.ERROR:
+                Log.e(CrowdControl.LOG_TAG, message, throwable);
+                break;
+            case Log.WARN:
+                Log.w(CrowdControl.LOG_TAG, message, throwable);
+                break;
+            default:
+                Log.d(CrowdControl.LOG_TAG, message, throwable);
+                break;
+        }
+    }
+}
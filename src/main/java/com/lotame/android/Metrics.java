@@ -0,0 +1,191 @@
+package com.lotame.android;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * A snapshot of the SDK's counters, taken by {@link CrowdControl#getMetrics()}.
+ * The counters cover every instance in the process, since metrics were
+ * enabled with {@link CrowdControl#enableMetrics(boolean)} or last reset.
+ *
+ * Latencies are recorded in power of two buckets, so percentiles are
+ * reported as the upper bound of the bucket they fall in.
+ */
+public final class Metrics {
+    private final long eventsAdded;
+    private final long eventsDropped;
+    private final long eventsFlushed;
+    private final long requestsSent;
+    private final long requestsFailed;
+    private final long retries;
+    private final long bytesSent;
+    private final long audienceCacheHits;
+    private final long audienceCacheMisses;
+    private final long initDurationMillis;
+    private final long[] requestLatency;
+    private final long[] flushLatency;
+    private final long[] audienceLatency;
+    private final long[] sendRequestLatency;
+
+    Metrics(long eventsAdded, long eventsDropped, long eventsFlushed, long requestsSent, long requestsFailed,
+            long retries, long bytesSent, long audienceCacheHits, long audienceCacheMisses,
+            long initDurationMillis, long[] requestLatency, long[] flushLatency,
+            long[] audienceLatency, long[] sendRequestLatency) {
+        this.eventsAdded = eventsAdded;
+        this.eventsDropped = eventsDropped;
+        this.eventsFlushed = eventsFlushed;
+        this.requestsSent = requestsSent;
+        this.requestsFailed = requestsFailed;
+        this.retries = retries;
+        this.bytesSent = bytesSent;
+        this.audienceCacheHits = audienceCacheHits;
+        this.audienceCacheMisses = audienceCacheMisses;
+        this.initDurationMillis = initDurationMillis;
+        this.requestLatency = requestLatency;
+        this.flushLatency = flushLatency;
+        this.audienceLatency = audienceLatency;
+        this.sendRequestLatency = sendRequestLatency;
+    }
+
+    /**
+     * @return the number of events queued by add(), addBehavior() and addOpportunity()
+     */
+    public long getEventsAdded() {
+        return eventsAdded;
+    }
+
+    /**
+     * @return the number of events discarded because a queue was full
+     */
+    public long getEventsDropped() {
+        return eventsDropped;
+    }
+
+    /**
+     * @return the number of events sent by successful flushes
+     */
+    public long getEventsFlushed() {
+        return eventsFlushed;
+    }
+
+    /**
+     * @return the number of bcp requests attempted, counting each retry
+     */
+    public long getRequestsSent() {
+        return requestsSent;
+    }
+
+    /**
+     * @return the number of bcp request attempts that failed
+     */
+    public long getRequestsFailed() {
+        return requestsFailed;
+    }
+
+    /**
+     * @return the number of times a failed bcp request was retried
+     */
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return the bytes sent by bcp requests that succeeded: their urls, and
+     * their compressed bodies when posting
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getAudienceCacheHits() {
+        return audienceCacheHits;
+    }
+
+    public long getAudienceCacheMisses() {
+        return audienceCacheMisses;
+    }
+
+    /**
+     * @return the share of cached audience lookups that found an entry, or 0
+     * if there were none
+     */
+    public double getAudienceCacheHitRatio() {
+        long lookups = audienceCacheHits + audienceCacheMisses;
+        return lookups == 0 ? 0 : (double) audienceCacheHits / lookups;
+    }
+
+    /**
+     * @return how long the most recently initialized instance took, from
+     * construction until it was ready to send, or -1 if none has been
+     */
+    public long getInitDurationMillis() {
+        return initDurationMillis;
+    }
+
+    /**
+     * @param percentile between 0 and 100, such as 50 or 99
+     * @return the latency of a single bcp request at the percentile
+     */
+    public long getRequestLatencyMillis(double percentile) {
+        return LatencyHistogram.percentile(requestLatency, percentile);
+    }
+
+    /**
+     * @param percentile between 0 and 100, such as 50 or 99
+     * @return the latency of a whole flush, including retries, at the percentile
+     */
+    public long getFlushLatencyMillis(double percentile) {
+        return LatencyHistogram.percentile(flushLatency, percentile);
+    }
+
+    /**
+     * @param percentile between 0 and 100, such as 50 or 99
+     * @return the latency of an audience extraction call at the percentile;
+     * responses served from the audience cache are not counted
+     */
+    public long getAudienceLatencyMillis(double percentile) {
+        return LatencyHistogram.percentile(audienceLatency, percentile);
+    }
+
+    /**
+     * @param percentile between 0 and 100, such as 50 or 99
+     * @return the latency of a request sent by sendRequest() at the percentile
+     */
+    public long getSendRequestLatencyMillis(double percentile) {
+        return LatencyHistogram.percentile(sendRequestLatency, percentile);
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics{added=" + eventsAdded + ", dropped=" + eventsDropped + ", flushed=" + eventsFlushed
+                + ", requests=" + requestsSent + ", failed=" + requestsFailed + ", retries=" + retries
+                + ", bytes=" + bytesSent + ", audienceCacheHitRatio=" + getAudienceCacheHitRatio()
+                + ", initMillis=" + initDurationMillis
+                + ", requestP50=" + getRequestLatencyMillis(50) + ", requestP99=" + getRequestLatencyMillis(99)
+                + ", flushP50=" + getFlushLatencyMillis(50) + ", flushP99=" + getFlushLatencyMillis(99)
+                + ", audienceP50=" + getAudienceLatencyMillis(50) + ", audienceP99=" + getAudienceLatencyMillis(99)
+                + ", sendRequestP50=" + getSendRequestLatencyMillis(50)
+                + ", sendRequestP99=" + getSendRequestLatencyMillis(99) + "}";
+    }
+}
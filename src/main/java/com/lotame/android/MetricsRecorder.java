@@ -0,0 +1,162 @@
+package com.lotame.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Process-wide counters and latency histograms behind {@link Metrics}.
+ * Every record method returns after a single volatile read while metrics
+ * are disabled, which is the default.
+ */
+final class MetricsRecorder {
+    static volatile boolean enabled = false;
+
+    private static final AtomicLong eventsAdded = new AtomicLong();
+    private static final AtomicLong eventsDropped = new AtomicLong();
+    private static final AtomicLong eventsFlushed = new AtomicLong();
+    private static final AtomicLong requestsSent = new AtomicLong();
+    private static final AtomicLong requestsFailed = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong bytesSent = new AtomicLong();
+    private static final AtomicLong audienceCacheHits = new AtomicLong();
+    private static final AtomicLong audienceCacheMisses = new AtomicLong();
+    private static final AtomicLong initDurationMillis = new AtomicLong(-1);
+    private static final LatencyHistogram requestLatency = new LatencyHistogram();
+    private static final LatencyHistogram flushLatency = new LatencyHistogram();
+    private static final LatencyHistogram audienceLatency = new LatencyHistogram();
+    private static final LatencyHistogram sendRequestLatency = new LatencyHistogram();
+
+    private MetricsRecorder() {
+    }
+
+    static void eventAdded() {
+        if (enabled) {
+            eventsAdded.incrementAndGet();
+        }
+    }
+
+    static void eventDropped() {
+        if (enabled) {
+            eventsDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param events        the number of events the flush sent
+     * @param latencyMillis how long the whole flush took
+     */
+    static void flushed(int events, long latencyMillis) {
+        if (enabled) {
+            eventsFlushed.addAndGet(events);
+            flushLatency.record(latencyMillis);
+        }
+    }
+
+    /**
+     * @param latencyMillis how long the bcp request attempt took
+     * @param succeeded     false if the attempt failed
+     */
+    static void request(long latencyMillis, boolean succeeded) {
+        if (enabled) {
+            requestsSent.incrementAndGet();
+            if (!succeeded) {
+                requestsFailed.incrementAndGet();
+            }
+            requestLatency.record(latencyMillis);
+        }
+    }
+
+    /**
+     * @param bytes the length of the url of a bcp request that succeeded,
+     *              plus its compressed body if it was posted
+     */
+    static void bytesSent(long bytes) {
+        if (enabled) {
+            bytesSent.addAndGet(bytes);
+        }
+    }
+
+    static void retry() {
+        if (enabled) {
+            retries.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param latencyMillis how long an audience extraction call took
+     */
+    static void audienceRequest(long latencyMillis) {
+        if (enabled) {
+            audienceLatency.record(latencyMillis);
+        }
+    }
+
+    /**
+     * @param latencyMillis how long a request sent by sendRequest() took
+     */
+    static void sendRequest(long latencyMillis) {
+        if (enabled) {
+            sendRequestLatency.record(latencyMillis);
+        }
+    }
+
+    static void audienceCache(boolean hit) {
+        if (enabled) {
+            (hit ? audienceCacheHits : audienceCacheMisses).incrementAndGet();
+        }
+    }
+
+    static void initialized(long durationMillis) {
+        if (enabled) {
+            initDurationMillis.set(durationMillis);
+        }
+    }
+
+    static Metrics snapshot() {
+        return new Metrics(eventsAdded.get(), eventsDropped.get(), eventsFlushed.get(),
+                requestsSent.get(), requestsFailed.get(), retries.get(), bytesSent.get(),
+                audienceCacheHits.get(), audienceCacheMisses.get(), initDurationMillis.get(),
+                requestLatency.snapshot(), flushLatency.snapshot(),
+                audienceLatency.snapshot(), sendRequestLatency.snapshot());
+    }
+
+    static void reset() {
+        eventsAdded.set(0);
+        eventsDropped.set(0);
+        eventsFlushed.set(0);
+        requestsSent.set(0);
+        requestsFailed.set(0);
+        retries.set(0);
+        bytesSent.set(0);
+        audienceCacheHits.set(0);
+        audienceCacheMisses.set(0);
+        initDurationMillis.set(-1);
+        requestLatency.reset();
+        flushLatency.reset();
+        audienceLatency.reset();
+        sendRequestLatency.reset();
+    }
+}
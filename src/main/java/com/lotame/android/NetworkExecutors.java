@@ -0,0 +1,166 @@
+package com.lotame.android;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * The executors that run the SDK's network calls, kept apart from the
+ * process-wide AsyncTask executors shared with the rest of the app.
+ *
+ * Traffic is split into lanes with their own threads, so that audience
+ * extraction calls, which callers are usually waiting on, and placement
+ * opportunities, never queue up behind collection traffic.  The default
+ * executors are small pools whose threads exit when idle; the audience and
+ * collection lanes can be replaced through
+ * {@link CrowdControl#setNetworkExecutors(Executor, Executor)}.
+ */
+final class NetworkExecutors {
+    enum Lane {
+        /**
+         * Audience extraction calls
+         */
+        AUDIENCE("CrowdControl-audience", Thread.NORM_PRIORITY),
+        /**
+         * Placement opportunities flushed ahead of queued behaviors
+         */
+        PRIORITY("CrowdControl-priority", Thread.NORM_PRIORITY),
+        /**
+         * bcp calls and requests sent through sendRequest()
+         */
+        COLLECTION("CrowdControl-collection", Thread.NORM_PRIORITY - 1);
+
+        private final String threadName;
+        private final int threadPriority;
+
+        Lane(String threadName, int threadPriority) {
+            this.threadName = threadName;
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    private static final int THREADS_PER_LANE = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile Executor audience;
+    private static volatile Executor collection;
+
+    private static Executor defaultAudience;
+    private static Executor defaultCollection;
+    private static Executor defaultPriority;
+    private static ScheduledThreadPoolExecutor timer;
+
+    private NetworkExecutors() {
+    }
+
+    static Executor get(Lane lane) {
+        if (lane == Lane.AUDIENCE) {
+            Executor executor = audience;
+            return executor != null ? executor : getDefaultAudience();
+        }
+        if (lane == Lane.PRIORITY) {
+            return getDefaultPriority();
+        }
+        Executor executor = collection;
+        return executor != null ? executor : getDefaultCollection();
+    }
+
+    /**
+     * @param collectionExecutor the executor for collection traffic, or null for the default
+     * @param audienceExecutor   the executor for audience extraction, or null for the default
+     */
+    static void set(Executor collectionExecutor, Executor audienceExecutor) {
+        collection = collectionExecutor;
+        audience = audienceExecutor;
+    }
+
+    private static synchronized Executor getDefaultAudience() {
+        if (defaultAudience == null) {
+            defaultAudience = newPool(Lane.AUDIENCE);
+        }
+        return defaultAudience;
+    }
+
+    private static synchronized Executor getDefaultCollection() {
+        if (defaultCollection == null) {
+            defaultCollection = newPool(Lane.COLLECTION);
+        }
+        return defaultCollection;
+    }
+
+    private static synchronized Executor getDefaultPriority() {
+        if (defaultPriority == null) {
+            defaultPriority = newPool(Lane.PRIORITY);
+        }
+        return defaultPriority;
+    }
+
+    /**
+     * @return the timer for send deadlines and retries, kept apart from the
+     * lanes, whose threads are busy for the whole of a send.  Its tasks only
+     * hand work to a lane, so one thread serves every instance, and it exits
+     * when idle.
+     */
+    static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CrowdControl-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            timer.allowCoreThreadTimeOut(true);
+        }
+        return timer;
+    }
+
+    private static Executor newPool(final Lane lane) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS_PER_LANE, THREADS_PER_LANE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, lane.threadName + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        t.setPriority(lane.threadPriority);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,571 @@
+package com.lotame.android;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Append-only, segment based on-disk journal of the atoms queued by a
+ * CrowdControl instance.
+ *
+ * Every atom is stamped with the segment that is active when it is queued.
+ * Draining the in-memory queue rolls the journal over to a new segment, and
+ * once the data has been accepted by the Lotame servers the drained segments
+ * are deleted. Segments left behind by a
+ * previous process are replayed by {@link #replay()}.
+ *
+ * All file I/O happens on a single background writer thread. Atoms queued
+ * while a write is in progress are written together and synced to disk with
+ * a single fsync.  Atoms too long to store are only kept in memory.
+ */
+class PersistentQueue {
+    private static final String DIR_PREFIX = "lotame_cc_queue_";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    /**
+     * The longest string writeUTF() accepts, in bytes of modified UTF-8
+     */
+    private static final int MAX_UTF_LENGTH = 65535;
+
+    /**
+     * The journal that owns each directory in this process, so that two
+     * instances with the same name never replay or delete each other's
+     * segments
+     */
+    private static final Map<String, WeakReference<PersistentQueue>> OWNERS = new HashMap<>();
+
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 30;
+    private static final ThreadFactory WRITER_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CrowdControl-queue");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * The app to keep the journal in the files directory of, or null if it
+     * is kept in {@link #parent}
+     */
+    private final Context context;
+    private final File parent;
+    private final String dirName;
+    private final String claim;
+    /**
+     * Resolved on the writer thread, as finding the files directory can
+     * touch the disk
+     */
+    private File dir;
+    private final ExecutorService writer;
+
+    /**
+     * The file sequence of this journal's first segment, one past the highest
+     * on disk when it started, so segments with a lower sequence were written
+     * by a previous journal however the clock moves.  Only used on the writer
+     * thread, and -1 until the directory has been listed.
+     */
+    private long firstSegment = -1;
+
+    /**
+     * The segments of this journal, numbered from zero; a segment is stored
+     * in the file with sequence {@link #firstSegment} plus its number.
+     */
+    private long activeSegment = 0;
+
+    /**
+     * First segment not yet covered by a {@link Checkpoint}.
+     */
+    private long drainFrom = 0;
+
+    private final Object lock = new Object();
+    private List<Record> pending = new ArrayList<>();
+    private boolean writeScheduled = false;
+
+    private long openSegment = -1;
+    private FileOutputStream openFile;
+    private DataOutputStream out;
+
+    private static final class Record {
+        final long segment;
+        final AtomParameter.Type type;
+        final String key;
+        final String value;
+        final long id;
+
+        Record(long segment, AtomParameter.Type type, String key, String value, long id) {
+            this.segment = segment;
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Inclusive range of segments drained together by a single transmission.
+     */
+    static final class Checkpoint {
+        final long first;
+        final long last;
+
+        Checkpoint(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        /**
+         * @return a checkpoint covering the segments of both, or null if
+         * either is null, as then some of their atoms are still queued
+         */
+        static Checkpoint span(Checkpoint a, Checkpoint b) {
+            if (a == null || b == null) {
+                return null;
+            }
+            return new Checkpoint(Math.min(a.first, b.first), Math.max(a.last, b.last));
+        }
+    }
+
+    /**
+     * @param context the app to keep the journal in the files directory of
+     * @param name    names the journal, so that a later process replays it
+     */
+    PersistentQueue(Context context, String name) {
+        this(context.getApplicationContext() == null ? context : context.getApplicationContext(), null, name);
+    }
+
+    /**
+     * @param parent the directory to keep the journal directory in
+     * @param name   names the journal, so that a later process replays it
+     */
+    PersistentQueue(File parent, String name) {
+        this(null, parent, name);
+    }
+
+    private PersistentQueue(Context context, File parent, String name) {
+        this.context = context;
+        this.parent = parent;
+        String scope = parent == null ? "" : parent.getAbsolutePath() + File.separator;
+        this.dirName = claim(scope, name, this);
+        this.claim = scope + dirName;
+        ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), WRITER_THREADS);
+        // An idle writer thread must not keep this journal, and so its
+        // directory, claimed
+        writer.allowCoreThreadTimeOut(true);
+        this.writer = writer;
+    }
+
+    /**
+     * @param scope the parent directory, or empty for the files directory
+     * @return the name of the directory for the named journal, or, while
+     * another live journal of the same name owns that one, the first free
+     * name with a numbered suffix.  Instances created in the same order by
+     * the next process get the same directories.
+     */
+    private static String claim(String scope, String name, PersistentQueue owner) {
+        synchronized (OWNERS) {
+            for (int i = 0; ; i++) {
+                String dirName = DIR_PREFIX + (i == 0 ? name : name + "_" + i);
+                WeakReference<PersistentQueue> existing = OWNERS.get(scope + dirName);
+                if (existing == null || existing.get() == null) {
+                    OWNERS.put(scope + dirName, new WeakReference<>(owner));
+                    return dirName;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the journal directory.  Writer thread only.
+     */
+    private File dir() {
+        if (dir == null) {
+            dir = new File(parent != null ? parent : context.getFilesDir(), dirName);
+        }
+        return dir;
+    }
+
+    /**
+     * Journal an atom into the active segment. Returns immediately; the
+     * write and fsync happen on the writer thread.
+     *
+     * @param atom the queued atom
+     */
+    void append(AtomParameter atom) {
+        append(atom.getType(), atom.getKey(), atom.getValue() == null ? "" : atom.getValue(), 0);
+    }
+
+    /**
+     * Journal a numeric atom into the active segment.
+     *
+     * @param type the atom type
+     * @param key  the atom key
+     * @param id   the numeric value
+     */
+    void append(AtomParameter.Type type, String key, long id) {
+        append(type, key, null, id);
+    }
+
+    private void append(AtomParameter.Type type, String key, String value, long id) {
+        synchronized (lock) {
+            pending.add(new Record(activeSegment, type, key, value, id));
+            if (writeScheduled) {
+                return;
+            }
+            writeScheduled = true;
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+            }
+        });
+    }
+
+    /**
+     * Close the active segment so that atoms queued from now on go into a new
+     * one. Must be called while the in-memory queue is being drained.
+     *
+     * @return the range of segments holding the drained atoms, to be passed
+     * to {@link #commit(Checkpoint)} once they have been transmitted.
+     */
+    Checkpoint roll() {
+        synchronized (lock) {
+            Checkpoint checkpoint = new Checkpoint(drainFrom, activeSegment);
+            drainFrom = ++activeSegment;
+            return checkpoint;
+        }
+    }
+
+    /**
+     * Delete every atom journaled so far, as if they had all been sent.
+     */
+    void clear() {
+        commit(roll());
+    }
+
+    /**
+     * Delete the segments covered by a checkpoint. Segments of a drain that
+     * was never committed stay on disk and are replayed by the next process.
+     *
+     * @param checkpoint the value returned by {@link #roll()}
+     */
+    void commit(final Checkpoint checkpoint) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+                long first = firstSegment();
+                File[] files = listSegments();
+                for (int i = 0; i < files.length; i++) {
+                    long seq = sequenceOf(files[i]);
+                    if (seq < first + checkpoint.first) {
+                        continue;
+                    }
+                    if (seq > first + checkpoint.last) {
+                        break;
+                    }
+                    if (seq - first == openSegment) {
+                        closeSegment();
+                    }
+                    if (!files[i].delete())
+                        Logger.w("Unable to delete queue segment ", files[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read back the atoms left on disk by a previous process. The segments are
+     * kept until {@link #discardReplayed()}, once the atoms have been queued
+     * and journaled again. Blocks while the writer thread reads them, so must
+     * not be called from the main thread.
+     *
+     * @return the journaled atoms, oldest first
+     */
+    List<AtomParameter> replay() {
+        Future<List<AtomParameter>> replayed = writer.submit(new Callable<List<AtomParameter>>() {
+            @Override
+            public List<AtomParameter> call() {
+                List<AtomParameter> atoms = new ArrayList<>();
+                long first = firstSegment();
+                File[] files = listSegments();
+                for (int i = 0; i < files.length; i++) {
+                    if (sequenceOf(files[i]) >= first) {
+                        break;
+                    }
+                    readSegment(files[i], atoms);
+                }
+                return atoms;
+            }
+        });
+        List<AtomParameter> atoms;
+        try {
+            atoms = replayed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        } catch (ExecutionException e) {
+            Logger.e("Unable to replay queued atoms", e.getCause());
+            return new ArrayList<>();
+        }
+        Logger.d("Replayed ", atoms.size(), " queued atoms from ", dirName);
+        return atoms;
+    }
+
+    /**
+     * Delete the segments read by {@link #replay()}, after everything
+     * appended so far, including the replayed atoms, is on disk.
+     */
+    void discardReplayed() {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!writePending()) {
+                    // Keep them to be replayed again by the next process
+                    return;
+                }
+                long first = firstSegment();
+                File[] files = listSegments();
+                for (int i = 0; i < files.length; i++) {
+                    if (sequenceOf(files[i]) >= first) {
+                        break;
+                    }
+                    if (!files[i].delete())
+                        Logger.w("Unable to delete queue segment ", files[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write out everything appended so far, stop the writer thread and give
+     * up the directory, so that a new journal of the same name replays it.
+     */
+    void close() {
+        Future<?> closed = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+                closeSegment();
+            }
+        });
+        writer.shutdown();
+        try {
+            closed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logger.e("Unable to close queue journal", e.getCause());
+        }
+        synchronized (OWNERS) {
+            OWNERS.remove(claim);
+        }
+    }
+
+    /**
+     * @return the file sequence of this journal's first segment, listing the
+     * directory on first use.  Writer thread only.
+     */
+    private long firstSegment() {
+        if (firstSegment < 0) {
+            File[] files = listSegments();
+            firstSegment = files.length == 0 ? 0 : sequenceOf(files[files.length - 1]) + 1;
+        }
+        return firstSegment;
+    }
+
+    /**
+     * @return false if the atoms could not all be written
+     */
+    private boolean writePending() {
+        List<Record> records;
+        synchronized (lock) {
+            records = pending;
+            pending = new ArrayList<>();
+            writeScheduled = false;
+        }
+        if (records.isEmpty()) {
+            return true;
+        }
+        try {
+            for (Record record : records) {
+                String value = record.value != null ? record.value : String.valueOf(record.id);
+                if (utfLength(record.key) > MAX_UTF_LENGTH || utfLength(value) > MAX_UTF_LENGTH) {
+                    // Still sent from memory; only too long to journal
+                    Logger.w("Not journaling an atom too long to store: ", record.key);
+                    continue;
+                }
+                if (record.segment != openSegment) {
+                    sync();
+                    closeSegment();
+                    openSegment(record.segment);
+                }
+                out.writeByte(record.type.ordinal());
+                out.writeUTF(record.key);
+                out.writeUTF(value);
+            }
+            sync();
+            return true;
+        } catch (IOException e) {
+            Logger.e("Unable to journal queued atoms", e);
+            closeSegment();
+            return false;
+        }
+    }
+
+    /**
+     * @return the length of the string in modified UTF-8, as written by writeUTF()
+     */
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length++;
+            } else if (c <= 0x07ff) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void openSegment(long segment) throws IOException {
+        File dir = dir();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        openFile = new FileOutputStream(new File(dir, (firstSegment() + segment) + SEGMENT_SUFFIX), true);
+        out = new DataOutputStream(new BufferedOutputStream(openFile));
+        openSegment = segment;
+    }
+
+    private void sync() throws IOException {
+        if (out != null) {
+            out.flush();
+            openFile.getFD().sync();
+        }
+    }
+
+    private void closeSegment() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Logger.e("Unable to close queue segment", e);
+            }
+        }
+        out = null;
+        openFile = null;
+        openSegment = -1;
+    }
+
+    private static void readSegment(File file, List<AtomParameter> atoms) {
+        AtomParameter.Type[] types = AtomParameter.Type.values();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                int type = in.readUnsignedByte();
+                String key = in.readUTF();
+                String value = in.readUTF();
+                if (type < types.length) {
+                    atoms.add(new AtomParameter(key, value, types[type]));
+                }
+            }
+        } catch (EOFException e) {
+            // End of segment, or a record torn by the process dying mid-write
+        } catch (IOException e) {
+            Logger.e("Unable to read queue segment ", file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private File[] listSegments() {
+        File[] files = dir().listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        List<File> segments = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (sequenceOf(file) >= 0) {
+                segments.add(file);
+            }
+        }
+        File[] sorted = segments.toArray(new File[0]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(sequenceOf(a), sequenceOf(b));
+            }
+        });
+        return sorted;
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
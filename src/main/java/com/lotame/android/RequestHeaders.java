@@ -0,0 +1,105 @@
+package com.lotame.android;
+
+import java.net.URLConnection;
+import java.util.Map;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * An immutable set of custom request headers.
+ *
+ * Setting a header makes a new copy, so a set in use by a request never
+ * changes: requests read it without locking, and a set built once is
+ * reused by every request until a header is set again.  Headers are kept
+ * in parallel arrays, in the order they were first set.
+ */
+final class RequestHeaders {
+    static final RequestHeaders EMPTY = new RequestHeaders(new String[0], new String[0]);
+
+    private final String[] names;
+    private final String[] values;
+
+    private RequestHeaders(String[] names, String[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * @param headers the headers to copy
+     * @return a snapshot of the headers
+     */
+    static RequestHeaders of(Map<String, String> headers) {
+        RequestHeaders result = EMPTY;
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                result = result.with(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of these headers with the header set to the value
+     */
+    RequestHeaders with(String name, String value) {
+        int i = indexOf(name);
+        String[] newNames;
+        String[] newValues = new String[i >= 0 ? values.length : values.length + 1];
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        if (i >= 0) {
+            newNames = names;
+        } else {
+            i = names.length;
+            newNames = new String[names.length + 1];
+            System.arraycopy(names, 0, newNames, 0, names.length);
+            newNames[i] = name;
+        }
+        newValues[i] = value;
+        return new RequestHeaders(newNames, newValues);
+    }
+
+    /**
+     * @return the value of the header, or null if it is not set
+     */
+    String get(String name) {
+        int i = indexOf(name);
+        return i >= 0 ? values[i] : null;
+    }
+
+    void applyTo(URLConnection conn) {
+        for (int i = 0; i < names.length; i++) {
+            conn.setRequestProperty(names[i], values[i]);
+        }
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null ? name == null : names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,171 @@
+package com.lotame.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * A url pattern for {@link CrowdControl#sendRequest(RequestTemplate)},
+ * parsed once into its literal text and its {deviceid} and {deviceidtype}
+ * macros.
+ *
+ * Compile a pattern that is sent repeatedly, such as a partner sync pixel,
+ * once and keep the template: each send then only appends the literals and
+ * the current id to a reused buffer, rather than searching the pattern for
+ * the macros again.  Templates are immutable and can be shared between
+ * threads and instances.
+ */
+public final class RequestTemplate {
+    static final String DEVICE_ID = "{deviceid}";
+    static final String DEVICE_ID_TYPE = "{deviceidtype}";
+
+    /**
+     * Patterns passed to {@link CrowdControl#sendRequest(String)} are
+     * compiled once and kept, up to this many
+     */
+    private static final int MAX_CACHED = 64;
+    private static final ConcurrentHashMap<String, RequestTemplate> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * The segments of the pattern in order: a literal, or null where the
+     * segment is a macro
+     */
+    private final String[] literals;
+    /**
+     * For each macro segment, whether it is {deviceidtype} rather than {deviceid}
+     */
+    private final boolean[] idTypes;
+    private final String pattern;
+    private final int literalLength;
+
+    private RequestTemplate(String pattern, String[] literals, boolean[] idTypes, int literalLength) {
+        this.pattern = pattern;
+        this.literals = literals;
+        this.idTypes = idTypes;
+        this.literalLength = literalLength;
+    }
+
+    /**
+     * @param pattern the url to send, which can contain the {deviceid} and
+     *                {deviceidtype} macros
+     * @return the compiled template
+     */
+    public static RequestTemplate compile(String pattern) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("pattern must not be null");
+        }
+        List<String> literals = new ArrayList<>();
+        List<Boolean> idTypes = new ArrayList<>();
+        int literalLength = 0;
+        int literalStart = 0;
+        int brace = pattern.indexOf('{');
+        while (brace >= 0) {
+            int macroLength;
+            boolean idType;
+            if (pattern.startsWith(DEVICE_ID, brace)) {
+                macroLength = DEVICE_ID.length();
+                idType = false;
+            } else if (pattern.startsWith(DEVICE_ID_TYPE, brace)) {
+                macroLength = DEVICE_ID_TYPE.length();
+                idType = true;
+            } else {
+                brace = pattern.indexOf('{', brace + 1);
+                continue;
+            }
+            if (brace > literalStart) {
+                literals.add(pattern.substring(literalStart, brace));
+                idTypes.add(Boolean.FALSE);
+                literalLength += brace - literalStart;
+            }
+            literals.add(null);
+            idTypes.add(idType);
+            literalStart = brace + macroLength;
+            brace = pattern.indexOf('{', literalStart);
+        }
+        if (literalStart < pattern.length()) {
+            literals.add(pattern.substring(literalStart));
+            idTypes.add(Boolean.FALSE);
+            literalLength += pattern.length() - literalStart;
+        }
+
+        boolean[] kinds = new boolean[idTypes.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = idTypes.get(i);
+        }
+        return new RequestTemplate(pattern, literals.toArray(new String[0]), kinds, literalLength);
+    }
+
+    /**
+     * @return the compiled template for the pattern, compiling it on first use
+     */
+    static RequestTemplate cached(String pattern) {
+        RequestTemplate template = CACHE.get(pattern);
+        if (template == null) {
+            template = compile(pattern);
+            // Past the limit, patterns are likely built per call, so keeping
+            // them would only grow the cache
+            if (CACHE.size() < MAX_CACHED) {
+                RequestTemplate existing = CACHE.putIfAbsent(pattern, template);
+                if (existing != null) {
+                    template = existing;
+                }
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Append the url, with the macros replaced, to the buffer.
+     *
+     * @param out    the buffer to append to
+     * @param id     replaces {deviceid}
+     * @param idType replaces {deviceidtype}
+     */
+    void render(StringBuilder out, String id, String idType) {
+        out.ensureCapacity(out.length() + literalLength + 2 * id.length());
+        for (int i = 0; i < literals.length; i++) {
+            String literal = literals[i];
+            if (literal != null) {
+                out.append(literal);
+            } else {
+                out.append(idTypes[i] ? idType : id);
+            }
+        }
+    }
+
+    /**
+     * @return the pattern the template was compiled from
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -0,0 +1,158 @@
+package com.lotame.android;
+
+import java.util.Random;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Controls how failed requests to the Crowd Control servers are retried.
+ *
+ * A failed request is attempted again up to {@link #getMaxAttempts()} times
+ * in all, waiting a random time of up to {@link #getInitialBackoffMillis()}
+ * before the second attempt and twice the previous limit before each further
+ * one, capped at {@link #getMaxBackoffMillis()}.  While the device has no
+ * connectivity the retry waits for it to return.
+ *
+ * After {@link #getCircuitBreakerThreshold()} requests in a row have failed,
+ * nothing is sent for {@link #getCircuitBreakerResetMillis()}; queued data is
+ * kept until then.
+ */
+public class RetryPolicy
+{
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60 * 1000;
+	public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+	public static final long DEFAULT_CIRCUIT_BREAKER_RESET_MILLIS = 5 * 60 * 1000;
+
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+	private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+	private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+	private long circuitBreakerResetMillis = DEFAULT_CIRCUIT_BREAKER_RESET_MILLIS;
+
+	/**
+	 * Construct a policy with the default limits.
+	 */
+	public RetryPolicy()
+	{
+		super();
+	}
+
+	public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis,
+			int circuitBreakerThreshold, long circuitBreakerResetMillis)
+	{
+		super();
+		this.setMaxAttempts(maxAttempts);
+		this.setInitialBackoffMillis(initialBackoffMillis);
+		this.setMaxBackoffMillis(maxBackoffMillis);
+		this.setCircuitBreakerThreshold(circuitBreakerThreshold);
+		this.setCircuitBreakerResetMillis(circuitBreakerResetMillis);
+	}
+
+	/**
+	 * @param failedAttempts the number of attempts made so far
+	 * @param random         the source of jitter
+	 * @return how long to wait before the next attempt
+	 */
+	long backoffMillis(int failedAttempts, Random random)
+	{
+		long limit = initialBackoffMillis;
+		for (int i = 1; i < failedAttempts && limit < maxBackoffMillis; i++) {
+			limit *= 2;
+		}
+		limit = Math.min(limit, maxBackoffMillis);
+		if (limit <= 0) {
+			return 0;
+		}
+		// Full jitter: spreads out the retries of clients that failed together
+		return (long) (random.nextDouble() * (limit + 1));
+	}
+
+	public int getMaxAttempts()
+	{
+		return maxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts)
+	{
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be positive");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	public long getInitialBackoffMillis()
+	{
+		return initialBackoffMillis;
+	}
+
+	public void setInitialBackoffMillis(long initialBackoffMillis)
+	{
+		if (initialBackoffMillis < 0) {
+			throw new IllegalArgumentException("initialBackoffMillis must not be negative");
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis()
+	{
+		return maxBackoffMillis;
+	}
+
+	public void setMaxBackoffMillis(long maxBackoffMillis)
+	{
+		if (maxBackoffMillis < 0) {
+			throw new IllegalArgumentException("maxBackoffMillis must not be negative");
+		}
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public int getCircuitBreakerThreshold()
+	{
+		return circuitBreakerThreshold;
+	}
+
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold)
+	{
+		if (circuitBreakerThreshold < 1) {
+			throw new IllegalArgumentException("circuitBreakerThreshold must be positive");
+		}
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	public long getCircuitBreakerResetMillis()
+	{
+		return circuitBreakerResetMillis;
+	}
+
+	public void setCircuitBreakerResetMillis(long circuitBreakerResetMillis)
+	{
+		if (circuitBreakerResetMillis < 0) {
+			throw new IllegalArgumentException("circuitBreakerResetMillis must not be negative");
+		}
+		this.circuitBreakerResetMillis = circuitBreakerResetMillis;
+	}
+}
@@ -1,13 +1,8 @@
 package com.lotame.android;
 
 import android.os.AsyncTask;
-import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Map;
 
 /**
@@ -38,57 +33,88 @@ import java.util.Map;
  * A utility class for sending data to Crowd Control asynchronously
  */
 public class SendOverHTTP extends AsyncTask<String, Void, String> {
-    Map<String, String> headerParams;
-    int connectionTimeout;
+    static final String SEND_FAILED = "send failed";
 
+    private final HttpTransport transport;
+    private Runnable onSuccess;
+    private Runnable onFailure;
+    private String[] bodies;
+    private boolean[] delivered;
+
+    /**
+     * @param params            custom request headers, copied when constructed
+     * @param connectionTimeout the connect and read timeout in milliseconds
+     */
     public SendOverHTTP(Map<String, String> params, int connectionTimeout) {
-        headerParams = params;
-        this.connectionTimeout = connectionTimeout;
+        this(new HttpTransport(RequestHeaders.of(params), connectionTimeout));
     }
 
-    public String send(String... urls) throws IOException {
-        String url = urls[0];
-        if (CrowdControl.debug) Log.d(CrowdControl.LOG_TAG, "Attempt GET from " + url);
-        HttpURLConnection conn;
-        StringBuilder response = new StringBuilder();
+    /**
+     * @param transport sends the requests, and may be shared with other senders
+     */
+    SendOverHTTP(HttpTransport transport) {
+        this.transport = transport;
+    }
 
-        conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setUseCaches(false);
-        conn.setConnectTimeout(connectionTimeout);
-        conn.setReadTimeout(connectionTimeout);
+    public String send(String... urls) throws IOException {
+        return transport.send(urls[0]);
+    }
 
-        synchronized (headerParams) {
-            for (Map.Entry<String, String> entry : headerParams.entrySet()) {
-                conn.setRequestProperty(entry.getKey(), entry.getValue());
-            }
-        }
+    /**
+     * Run the supplied callback on the background thread once an asynchronous
+     * send has completed successfully.
+     *
+     * @param onSuccess callback, may be null
+     */
+    void setOnSuccess(Runnable onSuccess) {
+        this.onSuccess = onSuccess;
+    }
 
-        conn.setRequestProperty("User-Agent", "Crowd Control Android SDK");
-        conn.setRequestProperty("Accept-Charset", "utf-8");
+    /**
+     * Run the supplied callback on the background thread if an asynchronous
+     * send fails.
+     *
+     * @param onFailure callback, may be null
+     */
+    void setOnFailure(Runnable onFailure) {
+        this.onFailure = onFailure;
+    }
 
-        BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-        try {
-            for (String line = br.readLine(); line != null; line = br.readLine()) {
-                response.append(line);
-            }
-            if (CrowdControl.debug)
-                Log.d(CrowdControl.LOG_TAG, String.format("GET success from %s", url));
-        } finally {
-            br.close();
-            conn.disconnect();
-        }
+    /**
+     * Record which urls are sent successfully, so that the rest can be sent
+     * again after a failure.
+     *
+     * @param delivered one entry per url passed to {@link #execute(Object[])}, may be null
+     */
+    void setDelivered(boolean[] delivered) {
+        this.delivered = delivered;
+    }
 
-        return response.toString();
+    /**
+     * Set the bodies to POST, one per url passed to {@link #execute(Object[])}.
+     * A null entry means the url is sent with GET.
+     *
+     * @param bodies the uncompressed bodies, may be null
+     */
+    void setBodies(String[] bodies) {
+        this.bodies = bodies;
     }
 
     @Override
     protected String doInBackground(String... urls) {
         try {
-            return send(urls);
+            String response = transport.sendAll(urls, bodies, delivered);
+            if (onSuccess != null) {
+                onSuccess.run();
+            }
+            return response;
         } catch (Exception e) {
-            if (CrowdControl.debug) Log.e(CrowdControl.LOG_TAG, "Async Send Failed", e);
+            Logger.e("Async Send Failed", e);
+            if (onFailure != null) {
+                onFailure.run();
+            }
         }
 
-        return "send failed";
+        return SEND_FAILED;
     }
 }
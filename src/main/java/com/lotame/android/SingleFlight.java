@@ -0,0 +1,135 @@
+package com.lotame.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Collapses concurrent calls for the same key into a single execution.
+ * While a call for a key is in flight, every other caller for that key is
+ * handed the same {@link Future}; once it completes the next call for the
+ * key starts a new execution.
+ *
+ * @param <V> the result type
+ */
+class SingleFlight<V> {
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Notified, on the thread that ran the call, when a call completes.
+     *
+     * @param <V> the result type
+     */
+    interface Callback<V> {
+        /**
+         * @param result the result, or null if the call failed
+         * @param error  the failure, or null if the call succeeded
+         */
+        void onComplete(V result, Exception error);
+    }
+
+    private final class Flight extends FutureTask<V> {
+        private final String key;
+        private List<Callback<V>> callbacks = new ArrayList<>(1);
+
+        Flight(String key, Callable<V> callable) {
+            super(callable);
+            this.key = key;
+        }
+
+        /**
+         * @return false if the call has already completed, in which case the
+         * callback was not registered
+         */
+        synchronized boolean addCallback(Callback<V> callback) {
+            if (callbacks == null) {
+                return false;
+            }
+            callbacks.add(callback);
+            return true;
+        }
+
+        @Override
+        protected void done() {
+            inFlight.remove(key, this);
+            List<Callback<V>> toNotify;
+            synchronized (this) {
+                toNotify = callbacks;
+                callbacks = null;
+            }
+            for (Callback<V> callback : toNotify) {
+                deliver(this, callback);
+            }
+        }
+    }
+
+    /**
+     * @param key      identifies identical calls
+     * @param callable performs the call if none is in flight for the key
+     * @param executor runs the callable
+     * @param callback notified when the call completes, may be null
+     * @return the future of the call in flight for the key
+     */
+    Future<V> execute(String key, Callable<V> callable, Executor executor, Callback<V> callback) {
+        Flight flight = inFlight.get(key);
+        if (flight == null) {
+            Flight created = new Flight(key, callable);
+            flight = inFlight.putIfAbsent(key, created);
+            if (flight == null) {
+                flight = created;
+                if (callback != null) {
+                    flight.addCallback(callback);
+                }
+                executor.execute(flight);
+                return flight;
+            }
+        }
+        if (callback != null && !flight.addCallback(callback)) {
+            deliver(flight, callback);
+        }
+        return flight;
+    }
+
+    private static <V> void deliver(Future<V> completed, Callback<V> callback) {
+        V result = null;
+        Exception error = null;
+        try {
+            result = completed.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            error = cause instanceof Exception ? (Exception) cause : e;
+        } catch (Exception e) {
+            error = e;
+        }
+        callback.onComplete(result, error);
+    }
+}
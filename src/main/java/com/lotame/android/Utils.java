@@ -3,6 +3,7 @@ package com.lotame.android;
 import android.content.Context;
 import android.provider.Settings.Secure;
 
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -32,9 +33,34 @@ import java.security.NoSuchAlgorithmException;
  * *******************************************************************************
  */
 public class Utils {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * The hashed android id, which does not change while the app process
+     * lives.
+     */
+    private static volatile String uuid;
+
     public static String getUuid(Context context) {
-        String udid =  Secure.getString(context.getContentResolver(), Secure.ANDROID_ID);
-        return sha1(udid);
+        String hashed = uuid;
+        if (hashed == null) {
+            String udid =  Secure.getString(context.getContentResolver(), Secure.ANDROID_ID);
+            hashed = sha1(udid);
+            uuid = hashed;
+        }
+        return hashed;
     }
 
     public static String sha1(String source) {
@@ -42,20 +68,18 @@ public class Utils {
             return null;
         }
 
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-
-        } catch (NoSuchAlgorithmException e) {
+        MessageDigest md = SHA1.get();
+        if (md == null) {
             return null;
         }
 
-        md.update(source.getBytes());
-        StringBuilder builder = new StringBuilder();
-        byte[] bytes = md.digest();
+        // UTF-8 is the default charset on Android, so this hashes the same bytes as before
+        byte[] bytes = md.digest(source.getBytes(UTF_8));
+        char[] hex = new char[bytes.length * 2];
         for (int i = 0; i < bytes.length; i++) {
-            builder.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
         }
-        return builder.toString();
+        return new String(hex);
     }
 }
@@ -0,0 +1,171 @@
+package com.lotame.android;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests the order, overflow policies and drop accounting of the atom queue.
+ */
+public class AtomQueueTest {
+
+    @Test
+    public void roundsCapacityUpToAPowerOfTwo() {
+        assertEquals(1, new AtomQueue(1, CrowdControl.OverflowPolicy.DROP_OLDEST).capacity());
+        assertEquals(8, new AtomQueue(5, CrowdControl.OverflowPolicy.DROP_OLDEST).capacity());
+        assertEquals(8, new AtomQueue(8, CrowdControl.OverflowPolicy.DROP_OLDEST).capacity());
+    }
+
+    @Test
+    public void rejectsCapacityOutOfRange() {
+        try {
+            new AtomQueue(0, CrowdControl.OverflowPolicy.DROP_OLDEST);
+            fail("capacity 0 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void drainsEveryKindInOrder() {
+        AtomQueue queue = new AtomQueue(8, CrowdControl.OverflowPolicy.DROP_OLDEST);
+        queue.offerBehavior(1);
+        queue.offer(new AtomParameter("seg", "sports"));
+        queue.offerOpportunity(2);
+        assertEquals(3, queue.size());
+
+        assertEquals(Arrays.asList("b1", "seg=sports", "p2"), drain(queue, 8));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void drainsAtMostMax() {
+        AtomQueue queue = new AtomQueue(8, CrowdControl.OverflowPolicy.DROP_OLDEST);
+        for (int i = 1; i <= 5; i++) {
+            queue.offerBehavior(i);
+        }
+        assertEquals(Arrays.asList("b1", "b2"), drain(queue, 2));
+        assertEquals(3, queue.size());
+        assertEquals(Arrays.asList("b3", "b4", "b5"), drain(queue, 8));
+    }
+
+    @Test
+    public void dropOldestEvictsAndCountsTheOldest() {
+        AtomQueue queue = new AtomQueue(4, CrowdControl.OverflowPolicy.DROP_OLDEST);
+        for (int i = 1; i <= 6; i++) {
+            assertTrue(queue.offerBehavior(i));
+        }
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(Arrays.asList("b3", "b4", "b5", "b6"), drain(queue, 8));
+    }
+
+    @Test
+    public void dropNewestRejectsAndCountsTheNewest() {
+        AtomQueue queue = new AtomQueue(4, CrowdControl.OverflowPolicy.DROP_NEWEST);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(queue.offerBehavior(i));
+        }
+        assertFalse(queue.offerBehavior(5));
+        assertFalse(queue.offer(new AtomParameter("seg", "sports")));
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(Arrays.asList("b1", "b2", "b3", "b4"), drain(queue, 8));
+    }
+
+    @Test
+    public void blockWaitsForRoomWithoutDropping() throws InterruptedException {
+        final AtomQueue queue = new AtomQueue(2, CrowdControl.OverflowPolicy.BLOCK);
+        queue.offerBehavior(1);
+        queue.offerBehavior(2);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.offerBehavior(3);
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue("offer returned while the queue was full", producer.isAlive());
+
+        assertEquals(Arrays.asList("b1"), drain(queue, 1));
+        producer.join(5000);
+        assertFalse("offer still blocked after a drain", producer.isAlive());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(Arrays.asList("b2", "b3"), drain(queue, 8));
+    }
+
+    @Test
+    public void accountsForEveryOfferUnderContention() throws InterruptedException {
+        final int producers = 4;
+        final int offers = 10000;
+        final AtomQueue queue = new AtomQueue(1024, CrowdControl.OverflowPolicy.DROP_OLDEST);
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < offers; j++) {
+                        queue.offerBehavior(j);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(queue.capacity(), queue.size());
+        assertEquals(producers * offers - queue.capacity(), queue.getDroppedCount());
+        assertEquals(queue.capacity(), drain(queue, Integer.MAX_VALUE).size());
+    }
+
+    private static List<String> drain(AtomQueue queue, int max) {
+        final List<String> drained = new ArrayList<>();
+        queue.drain(max, new AtomQueue.Sink() {
+            @Override
+            public void onAtom(AtomParameter atom) {
+                drained.add(atom.getKey() + "=" + atom.getValue());
+            }
+
+            @Override
+            public void onBehavior(long id) {
+                drained.add("b" + id);
+            }
+
+            @Override
+            public void onOpportunity(long id) {
+                drained.add("p" + id);
+            }
+        });
+        return drained;
+    }
+}
@@ -0,0 +1,198 @@
+package com.lotame.android;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests when the dispatcher flushes, against a target that only counts.
+ */
+public class BatchDispatcherTest {
+
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private BatchDispatcher dispatcher;
+
+    /**
+     * Counts flushes, reporting a backlog for the first few of them.
+     */
+    private static class CountingTarget implements BatchDispatcher.Target {
+        final AtomicInteger flushes = new AtomicInteger();
+        final AtomicInteger opportunityFlushes = new AtomicInteger();
+        final CountDownLatch flushed;
+        final CountDownLatch opportunitiesFlushed = new CountDownLatch(1);
+        volatile boolean ready = true;
+        volatile int backlogFlushes;
+
+        CountingTarget(int expectedFlushes) {
+            flushed = new CountDownLatch(expectedFlushes);
+        }
+
+        @Override
+        public boolean flushQueue() {
+            flushes.incrementAndGet();
+            flushed.countDown();
+            return ready;
+        }
+
+        @Override
+        public boolean hasBehaviorBacklog() {
+            return flushes.get() <= backlogFlushes;
+        }
+
+        @Override
+        public void flushOpportunities() {
+            opportunityFlushes.incrementAndGet();
+            opportunitiesFlushed.countDown();
+        }
+    }
+
+    private BatchDispatcher start(CountingTarget target, int maxBatchSize, long maxBatchAgeMillis) {
+        dispatcher = new BatchDispatcher(target, new FlushPolicy(maxBatchSize, maxBatchAgeMillis, 0, true), null);
+        return dispatcher;
+    }
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void flushesAtOnceWhenTheBatchIsFull() throws InterruptedException {
+        CountingTarget target = new CountingTarget(1);
+        start(target, 3, 60000).onAdd(3);
+
+        assertTrue(target.flushed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void flushesOnceTheBatchAges() throws InterruptedException {
+        CountingTarget target = new CountingTarget(1);
+        start(target, 100, 200).onAdd(1);
+
+        assertEquals(0, target.flushes.get());
+        assertTrue(target.flushed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void coalescesAddsIntoOneFlush() throws InterruptedException {
+        CountingTarget target = new CountingTarget(1);
+        BatchDispatcher dispatcher = start(target, 100, 200);
+        for (int i = 1; i <= 10; i++) {
+            dispatcher.onAdd(i);
+        }
+
+        assertTrue(target.flushed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(300);
+        assertEquals(1, target.flushes.get());
+    }
+
+    @Test
+    public void doesNotSpinWhileUnableToSend() throws InterruptedException {
+        CountingTarget target = new CountingTarget(1);
+        target.ready = false;
+        start(target, 1, 0).onAdd(1);
+
+        assertTrue(target.flushed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(500);
+        assertEquals(1, target.flushes.get());
+    }
+
+    @Test
+    public void keepsFlushingWhileBehaviorsAreBacklogged() throws InterruptedException {
+        CountingTarget target = new CountingTarget(3);
+        target.backlogFlushes = 2;
+        start(target, 1, 60000).onAdd(1);
+
+        assertTrue(target.flushed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(200);
+        assertEquals(3, target.flushes.get());
+    }
+
+    @Test
+    public void flushesOpportunitiesByTheirDeadline() throws InterruptedException {
+        CountingTarget target = new CountingTarget(1);
+        BatchDispatcher dispatcher = start(target, 100, 60000);
+        dispatcher.onOpportunityAdd(100);
+        dispatcher.onOpportunityAdd(50);
+
+        assertTrue(target.opportunitiesFlushed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Thread.sleep(200);
+        assertEquals(1, target.opportunityFlushes.get());
+        assertEquals(0, target.flushes.get());
+    }
+
+    @Test
+    public void shutdownFlushesAndStops() throws InterruptedException {
+        CountingTarget target = new CountingTarget(1);
+        BatchDispatcher dispatcher = start(target, 100, 60000);
+        dispatcher.onAdd(1);
+        dispatcher.shutdown();
+        this.dispatcher = null;
+
+        assertTrue(target.flushed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        dispatcher.onAdd(100);
+        dispatcher.requestFlush();
+        Thread.sleep(200);
+        assertEquals(1, target.flushes.get());
+    }
+
+    @Test
+    public void policyDefaults() {
+        FlushPolicy policy = new FlushPolicy();
+        assertEquals(FlushPolicy.DEFAULT_MAX_BATCH_SIZE, policy.getMaxBatchSize());
+        assertEquals(FlushPolicy.DEFAULT_MAX_BATCH_AGE_MILLIS, policy.getMaxBatchAgeMillis());
+        assertEquals(FlushPolicy.DEFAULT_MIN_FLUSH_INTERVAL_MILLIS, policy.getMinFlushIntervalMillis());
+        assertTrue(policy.isFlushOnBackground());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void policyRejectsEmptyBatches() {
+        new FlushPolicy().setMaxBatchSize(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void policyRejectsNegativeAge() {
+        new FlushPolicy(10, -1, 0, false);
+    }
+
+    @Test
+    public void policyAllowsFlushingOnEveryAdd() {
+        FlushPolicy policy = new FlushPolicy(1, 0, 0, false);
+        assertEquals(1, policy.getMaxBatchSize());
+        assertFalse(policy.isFlushOnBackground());
+    }
+}
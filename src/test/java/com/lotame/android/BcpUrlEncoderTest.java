@@ -0,0 +1,89 @@
+package com.lotame.android;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests that bcp parameters are encoded exactly as URLEncoder encodes them.
+ */
+public class BcpUrlEncoderTest {
+    private static final String[] VALUES = {
+            "",
+            "sports",
+            "AZaz09.-*_",
+            "sports & outdoors/running",
+            "a b+c%d=e",
+            "~!@#$^()[]{}|\\;:'\",<>?`",
+            "caf\u00e9 na\u00efve",
+            "\u4e2d\u6587",
+            "\ud83d\ude00 emoji",
+            "lone \ud83d high",
+            "lone \ude00 low",
+            "\ude00\ud83d reversed",
+            "trailing \ud83d",
+    };
+
+    @Test
+    public void encodesLikeUrlEncoder() throws UnsupportedEncodingException {
+        for (String value : VALUES) {
+            assertEncoded(value);
+        }
+    }
+
+    @Test
+    public void encodesRandomTextLikeUrlEncoder() throws UnsupportedEncodingException {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            char[] chars = new char[random.nextInt(16)];
+            for (int j = 0; j < chars.length; j++) {
+                // Mostly ASCII, with some of every other range
+                chars[j] = (char) (random.nextBoolean() ? random.nextInt(0x80) : random.nextInt(0x10000));
+            }
+            assertEncoded(new String(chars));
+        }
+    }
+
+    @Test
+    public void appendsParameters() {
+        StringBuilder out = new StringBuilder("https://bcp.crwdcntrl.net/5/");
+        BcpUrlEncoder.appendParameter(out, "seg", "a b");
+        BcpUrlEncoder.appendParameter(out, "b", 12345);
+        BcpUrlEncoder.appendParameter(out, "e", null);
+        assertEquals("https://bcp.crwdcntrl.net/5/seg=a+b/b=12345/e=/", out.toString());
+    }
+
+    private static void assertEncoded(String value) throws UnsupportedEncodingException {
+        StringBuilder out = new StringBuilder("prefix/");
+        BcpUrlEncoder.appendEncoded(out, value);
+        assertEquals(value, "prefix/" + URLEncoder.encode(value, "UTF-8"), out.toString());
+    }
+}
@@ -0,0 +1,137 @@
+package com.lotame.android;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests how drained atoms are split into bcp chunks, and where the page
+ * view and placement count flags land.
+ */
+public class BcpUrlWriterTest {
+
+    private CrowdControl.BcpUrlWriter writer;
+
+    @Before
+    public void setUp() {
+        writer = new CrowdControl.BcpUrlWriter();
+        writer.reset(10);
+    }
+
+    @Test
+    public void writesOneEmptyChunkWhenNothingIsDrained() {
+        assertEquals(Collections.singletonList(""), writer.chunks(false));
+    }
+
+    @Test
+    public void keepsAtomsTogetherUpToTheLimit() {
+        writer.onBehavior(1);
+        writer.onBehavior(2);
+        assertEquals(Collections.singletonList("b=1/b=2/"), writer.chunks(false));
+    }
+
+    @Test
+    public void startsANewChunkWhenAnAtomWouldOverflow() {
+        for (int id = 1; id <= 5; id++) {
+            writer.onBehavior(id);
+        }
+        assertEquals(Arrays.asList("b=1/b=2/", "b=3/b=4/", "b=5/"), writer.chunks(false));
+    }
+
+    @Test
+    public void neverSplitsASingleAtom() {
+        writer.onBehavior(1);
+        writer.onAtom(new AtomParameter("seg", "much longer than ten"));
+        writer.onBehavior(2);
+
+        List<String> chunks = writer.chunks(false);
+        assertEquals(3, chunks.size());
+        assertEquals("b=1/", chunks.get(0));
+        assertEquals("seg=much+longer+than+ten/", chunks.get(1));
+        assertEquals("b=2/", chunks.get(2));
+    }
+
+    @Test
+    public void addsThePageViewToTheFirstChunkOnly() {
+        for (int id = 1; id <= 5; id++) {
+            writer.onBehavior(id);
+        }
+        List<String> chunks = writer.chunks(true);
+
+        assertEquals("b=1/b=2/pv=y/", chunks.get(0));
+        for (String chunk : chunks.subList(1, chunks.size())) {
+            assertFalse(chunk, chunk.contains("pv="));
+        }
+    }
+
+    @Test
+    public void sendsAPageViewOnItsOwn() {
+        assertEquals(Collections.singletonList("pv=y/"), writer.chunks(true));
+    }
+
+    @Test
+    public void flagsPlacementCountsOncePerWriter() {
+        writer.reset(100);
+        writer.onOpportunity(7);
+        writer.onOpportunity(8);
+        assertEquals(Collections.singletonList("p=7/dp=y/p=8/"), writer.chunks(false));
+
+        writer.reset(100);
+        writer.onAtom(new AtomParameter("p", "9", AtomParameter.Type.PLACEMENT_OPPS));
+        writer.onOpportunity(10);
+        assertEquals(Collections.singletonList("p=9/p=10/"), writer.chunks(false));
+    }
+
+    @Test
+    public void flagsPlacementCountsWithAnyPlacementAtom() {
+        writer.reset(100);
+        writer.onBehavior(1);
+        writer.onAtom(new AtomParameter("p", "9", AtomParameter.Type.PLACEMENT_OPPS));
+        assertEquals(Collections.singletonList("b=1/p=9/dp=y/"), writer.chunks(false));
+    }
+
+    @Test
+    public void drainsAQueueIntoChunks() {
+        AtomQueue queue = new AtomQueue(8, CrowdControl.OverflowPolicy.DROP_OLDEST);
+        queue.offerOpportunity(3);
+        queue.offerBehavior(11);
+        queue.offerBehavior(12);
+        writer.reset(12);
+
+        assertEquals(3, queue.drain(8, writer));
+        List<String> chunks = writer.chunks(false);
+        assertEquals(Arrays.asList("p=3/dp=y/", "b=11/b=12/"), chunks);
+        assertTrue(queue.isEmpty());
+    }
+}
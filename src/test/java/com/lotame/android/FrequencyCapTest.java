@@ -0,0 +1,169 @@
+package com.lotame.android;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests the per session limit on how often each event is queued.
+ */
+public class FrequencyCapTest {
+
+    @Test
+    public void capsEachBehavior() {
+        FrequencyCap cap = new FrequencyCap(2);
+        assertTrue(cap.admitBehavior(7));
+        assertTrue(cap.admitBehavior(7));
+        assertFalse(cap.admitBehavior(7));
+        assertTrue(cap.admitBehavior(8));
+    }
+
+    @Test
+    public void capsBehaviorZero() {
+        FrequencyCap cap = new FrequencyCap(1);
+        assertTrue(cap.admitBehavior(0));
+        assertFalse(cap.admitBehavior(0));
+    }
+
+    @Test
+    public void capsEachAtom() {
+        FrequencyCap cap = new FrequencyCap(1);
+        assertTrue(cap.admit("seg", "sports"));
+        assertFalse(cap.admit("seg", "sports"));
+        assertTrue(cap.admit("seg", "news"));
+        assertTrue(cap.admit("sports", "seg"));
+        assertTrue(cap.admit("seg", null));
+        assertFalse(cap.admit("seg", null));
+    }
+
+    @Test
+    public void countsKindsApart() {
+        FrequencyCap cap = new FrequencyCap(1);
+        assertTrue(cap.admitBehavior(7));
+        assertTrue(cap.admitOpportunity(7));
+        assertFalse(cap.admitOpportunity(7));
+        assertTrue(cap.admit("b", "7"));
+    }
+
+    @Test
+    public void resetStartsCountingAfresh() {
+        FrequencyCap cap = new FrequencyCap(1);
+        for (int i = 0; i < 1000; i++) {
+            cap.admitBehavior(i);
+        }
+        cap.admit("seg", "sports");
+        cap.admitOpportunity(7);
+        cap.reset();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(cap.admitBehavior(i));
+        }
+        assertTrue(cap.admit("seg", "sports"));
+        assertTrue(cap.admitOpportunity(7));
+    }
+
+    @Test
+    public void letsNewEventsThroughUncountedOnceFull() {
+        FrequencyCap cap = new FrequencyCap(1);
+        for (int i = 1; i <= FrequencyCap.MAX_KEYS; i++) {
+            assertTrue(cap.admitBehavior(i));
+        }
+        long untracked = FrequencyCap.MAX_KEYS + 1;
+        assertTrue(cap.admitBehavior(untracked));
+        assertTrue(cap.admitBehavior(untracked));
+        // Events already counted stay capped
+        assertFalse(cap.admitBehavior(1));
+        assertFalse(cap.admitBehavior(FrequencyCap.MAX_KEYS));
+    }
+
+    @Test
+    public void refundGivesBackTheCharge() {
+        FrequencyCap cap = new FrequencyCap(1);
+        assertTrue(cap.admitBehavior(7));
+        cap.refundBehavior(7);
+        assertTrue(cap.admitBehavior(7));
+        assertFalse(cap.admitBehavior(7));
+
+        assertTrue(cap.admit("seg", "sports"));
+        cap.refund("seg", "sports");
+        assertTrue(cap.admit("seg", "sports"));
+
+        // Refunding what was never charged changes nothing
+        cap.refundOpportunity(9);
+        assertTrue(cap.admitOpportunity(9));
+        assertFalse(cap.admitOpportunity(9));
+    }
+
+    @Test
+    public void admitsExactlyTheCapAcrossThreads() throws InterruptedException {
+        final int threads = 8;
+        final int keys = 2000;
+        final FrequencyCap cap = new FrequencyCap(3);
+        final AtomicInteger admitted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // Every thread adds every key, so the tables grow while contended
+                    for (int round = 0; round < 2; round++) {
+                        for (int id = 1; id <= keys; id++) {
+                            if (cap.admitBehavior(id)) {
+                                admitted.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(3 * keys, admitted.get());
+        assertFalse(cap.admitBehavior(1));
+        assertFalse(cap.admitBehavior(keys));
+    }
+
+    @Test
+    public void fingerprintsSeparateKeyFromValue() {
+        assertFalse(FrequencyCap.fingerprint("ab", "c") == FrequencyCap.fingerprint("a", "bc"));
+        assertEquals(FrequencyCap.fingerprint("seg", "sports"), FrequencyCap.fingerprint("seg", "sports"));
+    }
+}
@@ -0,0 +1,108 @@
+package com.lotame.android;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests the bucketing of recorded latencies and the percentiles read back
+ * from a snapshot.
+ */
+public class LatencyHistogramTest {
+
+    private static long[] recorded(long... millis) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long m : millis) {
+            histogram.record(m);
+        }
+        return histogram.snapshot();
+    }
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        long[] empty = recorded();
+        assertEquals(0, LatencyHistogram.percentile(empty, 50));
+        assertEquals(0, LatencyHistogram.percentile(empty, 100));
+    }
+
+    @Test
+    public void bucketsByPowersOfTwo() {
+        long[] counts = recorded(0, 1, 2, 3, 4, 7, 8, 1000);
+        assertEquals(1, counts[0]);
+        assertEquals(1, counts[1]);
+        assertEquals(2, counts[2]);
+        assertEquals(2, counts[3]);
+        assertEquals(1, counts[4]);
+        assertEquals(1, counts[10]);
+    }
+
+    @Test
+    public void reportsTheUpperBoundOfTheBucket() {
+        assertEquals(128, LatencyHistogram.percentile(recorded(100), 50));
+        assertEquals(1, LatencyHistogram.percentile(recorded(0), 99));
+    }
+
+    @Test
+    public void picksTheBucketHoldingTheRank() {
+        // 90 fast requests, 10 slow ones
+        long[] millis = new long[100];
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = i < 90 ? 5 : 500;
+        }
+        long[] counts = recorded(millis);
+
+        assertEquals(8, LatencyHistogram.percentile(counts, 50));
+        assertEquals(8, LatencyHistogram.percentile(counts, 90));
+        assertEquals(512, LatencyHistogram.percentile(counts, 91));
+        assertEquals(512, LatencyHistogram.percentile(counts, 99));
+    }
+
+    @Test
+    public void clampsPercentilesOutOfRange() {
+        long[] counts = recorded(3, 300);
+        assertEquals(4, LatencyHistogram.percentile(counts, -5));
+        assertEquals(4, LatencyHistogram.percentile(counts, 0));
+        assertEquals(512, LatencyHistogram.percentile(counts, 100));
+        assertEquals(512, LatencyHistogram.percentile(counts, 250));
+    }
+
+    @Test
+    public void collectsVeryLongLatenciesInTheLastBucket() {
+        long[] counts = recorded(Long.MAX_VALUE, 10L * 60 * 60 * 1000);
+        assertEquals(2, counts[LatencyHistogram.BUCKETS - 1]);
+        assertEquals(1L << (LatencyHistogram.BUCKETS - 1), LatencyHistogram.percentile(counts, 50));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(20);
+        histogram.reset();
+        assertEquals(0, LatencyHistogram.percentile(histogram.snapshot(), 99));
+    }
+}
@@ -0,0 +1,209 @@
+package com.lotame.android;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests rolling, committing and replaying the on-disk queue journal.
+ */
+public class PersistentQueueTest {
+    private static final String NAME = "1_HTTPS";
+
+    private File parent;
+
+    @Before
+    public void setUp() throws IOException {
+        parent = File.createTempFile("persistent-queue", "");
+        assertTrue(parent.delete() && parent.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(parent);
+    }
+
+    @Test
+    public void replaysAtomsLeftByThePreviousJournal() {
+        PersistentQueue journal = new PersistentQueue(parent, NAME);
+        journal.append(new AtomParameter("seg", "sports"));
+        journal.append(AtomParameter.Type.PLACEMENT_OPPS, "p", 42);
+        journal.close();
+
+        List<AtomParameter> atoms = new PersistentQueue(parent, NAME).replay();
+        assertEquals(2, atoms.size());
+        assertAtom(atoms.get(0), "seg", "sports", AtomParameter.Type.DEFAULT);
+        assertAtom(atoms.get(1), "p", "42", AtomParameter.Type.PLACEMENT_OPPS);
+    }
+
+    @Test
+    public void doesNotReplayItsOwnAtoms() {
+        PersistentQueue journal = new PersistentQueue(parent, NAME);
+        journal.append(new AtomParameter("seg", "sports"));
+        assertEquals(0, journal.replay().size());
+        journal.close();
+    }
+
+    @Test
+    public void committedSegmentsAreNotReplayed() {
+        PersistentQueue journal = new PersistentQueue(parent, NAME);
+        journal.append(new AtomParameter("seg", "sent"));
+        PersistentQueue.Checkpoint checkpoint = journal.roll();
+        journal.append(new AtomParameter("seg", "queued"));
+        journal.commit(checkpoint);
+        journal.close();
+
+        List<AtomParameter> atoms = new PersistentQueue(parent, NAME).replay();
+        assertEquals(1, atoms.size());
+        assertAtom(atoms.get(0), "seg", "queued", AtomParameter.Type.DEFAULT);
+    }
+
+    @Test
+    public void uncommittedDrainsAreReplayed() {
+        PersistentQueue journal = new PersistentQueue(parent, NAME);
+        journal.append(new AtomParameter("seg", "failed"));
+        journal.roll();
+        journal.append(new AtomParameter("seg", "queued"));
+        journal.close();
+
+        assertEquals(2, new PersistentQueue(parent, NAME).replay().size());
+    }
+
+    @Test
+    public void commitsOnlySegmentsOfTheCurrentJournal() {
+        PersistentQueue previous = new PersistentQueue(parent, NAME);
+        previous.append(new AtomParameter("seg", "previous"));
+        previous.close();
+
+        PersistentQueue journal = new PersistentQueue(parent, NAME);
+        journal.append(new AtomParameter("seg", "current"));
+        journal.commit(journal.roll());
+        journal.close();
+
+        List<AtomParameter> atoms = new PersistentQueue(parent, NAME).replay();
+        assertEquals(1, atoms.size());
+        assertAtom(atoms.get(0), "seg", "previous", AtomParameter.Type.DEFAULT);
+    }
+
+    @Test
+    public void discardsReplayedSegments() {
+        PersistentQueue previous = new PersistentQueue(parent, NAME);
+        previous.append(new AtomParameter("seg", "previous"));
+        previous.close();
+
+        PersistentQueue journal = new PersistentQueue(parent, NAME);
+        for (AtomParameter atom : journal.replay()) {
+            journal.append(atom);
+        }
+        journal.discardReplayed();
+        journal.close();
+
+        List<AtomParameter> atoms = new PersistentQueue(parent, NAME).replay();
+        assertEquals(1, atoms.size());
+        assertAtom(atoms.get(0), "seg", "previous", AtomParameter.Type.DEFAULT);
+    }
+
+    @Test
+    public void numbersSegmentsAfterTheHighestOnDisk() throws IOException {
+        // As left by a journal whose clock was ahead
+        File dir = new File(parent, "lotame_cc_queue_" + NAME);
+        assertTrue(dir.mkdir());
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "9999999999999.seg")));
+        out.writeByte(AtomParameter.Type.DEFAULT.ordinal());
+        out.writeUTF("seg");
+        out.writeUTF("ahead");
+        out.close();
+
+        PersistentQueue journal = new PersistentQueue(parent, NAME);
+        assertEquals(1, journal.replay().size());
+        journal.append(new AtomParameter("seg", "current"));
+        journal.close();
+
+        List<AtomParameter> atoms = new PersistentQueue(parent, NAME).replay();
+        assertEquals(2, atoms.size());
+        assertAtom(atoms.get(0), "seg", "ahead", AtomParameter.Type.DEFAULT);
+        assertAtom(atoms.get(1), "seg", "current", AtomParameter.Type.DEFAULT);
+    }
+
+    @Test
+    public void journalsOfTheSameNameKeepApart() {
+        PersistentQueue first = new PersistentQueue(parent, NAME);
+        PersistentQueue second = new PersistentQueue(parent, NAME);
+        first.append(new AtomParameter("seg", "first"));
+        assertEquals(0, second.replay().size());
+        second.commit(second.roll());
+        first.close();
+        second.close();
+
+        List<AtomParameter> atoms = new PersistentQueue(parent, NAME).replay();
+        assertEquals(1, atoms.size());
+        assertAtom(atoms.get(0), "seg", "first", AtomParameter.Type.DEFAULT);
+    }
+
+    @Test
+    public void skipsAtomsTooLongToStore() {
+        StringBuilder value = new StringBuilder();
+        while (value.length() <= 65535) {
+            value.append("0123456789");
+        }
+        PersistentQueue journal = new PersistentQueue(parent, NAME);
+        journal.append(new AtomParameter("seg", "before"));
+        journal.append(new AtomParameter("seg", value.toString()));
+        journal.append(new AtomParameter("seg", "after"));
+        journal.close();
+
+        List<AtomParameter> atoms = new PersistentQueue(parent, NAME).replay();
+        assertEquals(2, atoms.size());
+        assertAtom(atoms.get(0), "seg", "before", AtomParameter.Type.DEFAULT);
+        assertAtom(atoms.get(1), "seg", "after", AtomParameter.Type.DEFAULT);
+    }
+
+    private static void assertAtom(AtomParameter atom, String key, String value, AtomParameter.Type type) {
+        assertEquals(key, atom.getKey());
+        assertEquals(value, atom.getValue());
+        assertEquals(type, atom.getType());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,148 @@
+package com.lotame.android;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests that a set of request headers never changes once built: setting a
+ * header returns a new copy and leaves every earlier copy as it was.
+ */
+public class RequestHeadersTest {
+
+    /**
+     * Records each header set on it, in order, without ever connecting.
+     */
+    private static class RecordingConnection extends URLConnection {
+        final List<String> applied = new ArrayList<String>();
+
+        RecordingConnection() throws Exception {
+            super(new URL("http://localhost/"));
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            applied.add(key + "=" + value);
+        }
+
+        @Override
+        public void connect() {
+        }
+    }
+
+    private static List<String> applied(RequestHeaders headers) throws Exception {
+        RecordingConnection conn = new RecordingConnection();
+        headers.applyTo(conn);
+        return conn.applied;
+    }
+
+    @Test
+    public void emptyAppliesNothing() throws Exception {
+        assertEquals(0, applied(RequestHeaders.EMPTY).size());
+        assertNull(RequestHeaders.EMPTY.get("X-Anything"));
+        assertSame(RequestHeaders.EMPTY, RequestHeaders.of(null));
+        assertSame(RequestHeaders.EMPTY, RequestHeaders.of(new LinkedHashMap<String, String>()));
+    }
+
+    @Test
+    public void settingAHeaderLeavesTheOriginalUnchanged() throws Exception {
+        RequestHeaders first = RequestHeaders.EMPTY.with("X-A", "1");
+        RequestHeaders second = first.with("X-B", "2");
+        RequestHeaders third = second.with("X-A", "3");
+
+        assertNotSame(first, second);
+        assertNotSame(second, third);
+
+        assertEquals("[X-A=1]", applied(first).toString());
+        assertEquals("[X-A=1, X-B=2]", applied(second).toString());
+        assertEquals("[X-A=3, X-B=2]", applied(third).toString());
+        assertEquals(0, applied(RequestHeaders.EMPTY).size());
+    }
+
+    @Test
+    public void snapshotIgnoresLaterChangesToTheMap() {
+        Map<String, String> source = new LinkedHashMap<String, String>();
+        source.put("X-A", "1");
+        RequestHeaders headers = RequestHeaders.of(source);
+
+        source.put("X-A", "changed");
+        source.put("X-B", "2");
+
+        assertEquals("1", headers.get("X-A"));
+        assertNull(headers.get("X-B"));
+    }
+
+    @Test
+    public void replacingAValueKeepsItsPosition() throws Exception {
+        RequestHeaders headers = RequestHeaders.EMPTY
+                .with("X-A", "1")
+                .with("X-B", "2")
+                .with("X-C", "3")
+                .with("X-B", "two");
+        assertEquals("[X-A=1, X-B=two, X-C=3]", applied(headers).toString());
+    }
+
+    @Test
+    public void readersSeeACompleteSetWhileAnotherThreadWrites() throws Exception {
+        final RequestHeaders[] current = { RequestHeaders.EMPTY.with("X-A", "0").with("X-B", "0") };
+        final Object lock = new Object();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= 2000; i++) {
+                    String v = Integer.toString(i);
+                    synchronized (lock) {
+                        current[0] = current[0].with("X-A", v).with("X-B", v);
+                    }
+                }
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 2000; i++) {
+            RequestHeaders seen;
+            synchronized (lock) {
+                seen = current[0];
+            }
+            // Each published copy pairs the two values, however far the writer has got.
+            List<String> pairs = applied(seen);
+            assertEquals(2, pairs.size());
+            assertEquals(pairs.get(0).substring(4), pairs.get(1).substring(4));
+        }
+        writer.join();
+        assertEquals("2000", current[0].get("X-B"));
+    }
+}
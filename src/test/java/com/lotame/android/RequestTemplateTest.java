@@ -0,0 +1,92 @@
+package com.lotame.android;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests that compiled request templates render urls exactly as replacing
+ * the macros in the pattern does.
+ */
+public class RequestTemplateTest {
+    private static final String ID = "0123456789abcdef";
+    private static final String ID_TYPE = "GAID";
+
+    private static final String[] PATTERNS = {
+            "",
+            "https://sync.example.com/pixel",
+            "https://sync.example.com/pixel?id={deviceid}",
+            "https://sync.example.com/pixel?id={deviceid}&type={deviceidtype}",
+            "{deviceid}",
+            "{deviceidtype}{deviceid}",
+            "{deviceid}{deviceid}",
+            "https://sync.example.com/{unknown}/{deviceid}",
+            "{{deviceid}}",
+            "{deviceid",
+            "deviceid}",
+            "{",
+            "}{",
+            "{deviceidtyp}",
+            "{deviceidtype",
+            "a{deviceid}b{deviceidtype}c{deviceid}d",
+    };
+
+    @Test
+    public void rendersLikeStringReplace() {
+        for (String pattern : PATTERNS) {
+            StringBuilder out = new StringBuilder("prefix:");
+            RequestTemplate.compile(pattern).render(out, ID, ID_TYPE);
+            assertEquals(pattern, "prefix:" + replace(pattern), out.toString());
+        }
+    }
+
+    @Test
+    public void keepsThePattern() {
+        RequestTemplate template = RequestTemplate.compile(PATTERNS[3]);
+        assertEquals(PATTERNS[3], template.getPattern());
+        assertEquals(PATTERNS[3], template.toString());
+    }
+
+    @Test
+    public void cachesCompiledPatterns() {
+        String pattern = "https://sync.example.com/cached?id={deviceid}";
+        assertSame(RequestTemplate.cached(pattern), RequestTemplate.cached(pattern));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANullPattern() {
+        RequestTemplate.compile(null);
+    }
+
+    /**
+     * How sendRequest() replaced the macros before templates
+     */
+    private static String replace(String pattern) {
+        return pattern.replace(RequestTemplate.DEVICE_ID, ID).replace(RequestTemplate.DEVICE_ID_TYPE, ID_TYPE);
+    }
+}
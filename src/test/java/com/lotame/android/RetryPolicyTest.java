@@ -0,0 +1,161 @@
+package com.lotame.android;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests the backoff limits of the retry policy and the states of the
+ * circuit breaker built from it.
+ */
+public class RetryPolicyTest {
+
+    /**
+     * Always draws the same jitter.
+     */
+    private static Random fixed(final double value) {
+        return new Random() {
+            @Override
+            public double nextDouble() {
+                return value;
+            }
+        };
+    }
+
+    private static final Random HIGHEST = fixed(0.9999999);
+    private static final Random LOWEST = fixed(0);
+
+    @Test
+    public void doublesTheLimitAfterEachAttempt() {
+        RetryPolicy policy = new RetryPolicy(10, 1000, 60000, 5, 1000);
+        assertEquals(1000, policy.backoffMillis(1, HIGHEST));
+        assertEquals(2000, policy.backoffMillis(2, HIGHEST));
+        assertEquals(4000, policy.backoffMillis(3, HIGHEST));
+        assertEquals(32000, policy.backoffMillis(6, HIGHEST));
+    }
+
+    @Test
+    public void capsTheLimit() {
+        RetryPolicy policy = new RetryPolicy(10, 1000, 60000, 5, 1000);
+        assertEquals(60000, policy.backoffMillis(7, HIGHEST));
+        // Far past the point where doubling would overflow
+        assertEquals(60000, policy.backoffMillis(200, HIGHEST));
+    }
+
+    @Test
+    public void jitterStaysWithinTheLimit() {
+        RetryPolicy policy = new RetryPolicy();
+        Random random = new Random(42);
+        for (int attempt = 1; attempt <= 12; attempt++) {
+            long limit = Math.min(RetryPolicy.DEFAULT_INITIAL_BACKOFF_MILLIS << (attempt - 1),
+                    RetryPolicy.DEFAULT_MAX_BACKOFF_MILLIS);
+            for (int i = 0; i < 100; i++) {
+                long backoff = policy.backoffMillis(attempt, random);
+                assertTrue("attempt " + attempt + ": " + backoff, backoff >= 0 && backoff <= limit);
+            }
+            assertEquals(0, policy.backoffMillis(attempt, LOWEST));
+        }
+    }
+
+    @Test
+    public void retriesAtOnceWithoutBackoff() {
+        RetryPolicy policy = new RetryPolicy(3, 0, 0, 5, 1000);
+        assertEquals(0, policy.backoffMillis(1, HIGHEST));
+        assertEquals(0, policy.backoffMillis(3, HIGHEST));
+    }
+
+    @Test
+    public void rejectsInvalidLimits() {
+        RetryPolicy policy = new RetryPolicy();
+        try {
+            policy.setMaxAttempts(0);
+            fail("maxAttempts 0 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            policy.setMaxBackoffMillis(-1);
+            fail("negative maxBackoffMillis accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            policy.setCircuitBreakerThreshold(0);
+            fail("circuitBreakerThreshold 0 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(RetryPolicy.DEFAULT_MAX_ATTEMPTS, policy.getMaxAttempts());
+    }
+
+    @Test
+    public void breakerOpensAfterThresholdFailuresInARow() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60 * 60 * 1000);
+        breaker.onFailure();
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+        assertEquals(0, breaker.remainingOpenMillis());
+
+        breaker.onFailure();
+        assertFalse(breaker.allowRequest());
+        long remaining = breaker.remainingOpenMillis();
+        assertTrue(String.valueOf(remaining), remaining > 0 && remaining <= 60 * 60 * 1000);
+    }
+
+    @Test
+    public void successResetsTheCount() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60 * 60 * 1000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void successClosesAnOpenBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 60 * 60 * 1000);
+        breaker.onFailure();
+        assertFalse(breaker.allowRequest());
+
+        breaker.onSuccess();
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void halfOpensOnceTheResetTimeHasPassed() {
+        // With no reset time the breaker half-opens straight away
+        CircuitBreaker breaker = new CircuitBreaker(2, 0);
+        breaker.onFailure();
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+        assertEquals(0, breaker.remainingOpenMillis());
+    }
+}
@@ -0,0 +1,222 @@
+package com.lotame.android;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The MIT License (MIT)
+ *
+ *  Copyright (c) 2021 Lotame
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * *******************************************************************************
+ *
+ * Tests that identical calls in flight share one execution and its outcome.
+ */
+public class SingleFlightTest {
+
+    /**
+     * Runs nothing until told to, so a call can be held in flight.
+     */
+    private static class ManualExecutor implements Executor {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static class Recorder implements SingleFlight.Callback<String> {
+        final List<String> results = new ArrayList<>();
+        final List<Exception> errors = new ArrayList<>();
+
+        @Override
+        public void onComplete(String result, Exception error) {
+            results.add(result);
+            errors.add(error);
+        }
+    }
+
+    private static Callable<String> counting(final AtomicInteger calls, final String result) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                calls.incrementAndGet();
+                return result;
+            }
+        };
+    }
+
+    @Test
+    public void coalescesCallsInFlight() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        ManualExecutor executor = new ManualExecutor();
+        AtomicInteger calls = new AtomicInteger();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        Future<String> a = flights.execute("url", counting(calls, "one"), executor, first);
+        Future<String> b = flights.execute("url", counting(calls, "two"), executor, second);
+        assertSame(a, b);
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals(1, calls.get());
+        assertEquals("one", a.get());
+        assertEquals(Collections.singletonList("one"), first.results);
+        assertEquals(Collections.singletonList("one"), second.results);
+        assertNull(second.errors.get(0));
+    }
+
+    @Test
+    public void startsAgainOnceComplete() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        ManualExecutor executor = new ManualExecutor();
+        AtomicInteger calls = new AtomicInteger();
+
+        Future<String> a = flights.execute("url", counting(calls, "one"), executor, null);
+        executor.runAll();
+        Future<String> b = flights.execute("url", counting(calls, "two"), executor, null);
+        executor.runAll();
+
+        assertNotSame(a, b);
+        assertEquals(2, calls.get());
+        assertEquals("two", b.get());
+    }
+
+    @Test
+    public void keysAreIndependent() {
+        SingleFlight<String> flights = new SingleFlight<>();
+        ManualExecutor executor = new ManualExecutor();
+        AtomicInteger calls = new AtomicInteger();
+
+        flights.execute("a", counting(calls, "a"), executor, null);
+        flights.execute("b", counting(calls, "b"), executor, null);
+        executor.runAll();
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void deliversTheFailureToEveryCaller() throws InterruptedException {
+        SingleFlight<String> flights = new SingleFlight<>();
+        ManualExecutor executor = new ManualExecutor();
+        final IOException failure = new IOException("offline");
+        Callable<String> failing = new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                throw failure;
+            }
+        };
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        Future<String> future = flights.execute("url", failing, executor, first);
+        flights.execute("url", failing, executor, second);
+        executor.runAll();
+
+        assertSame(failure, first.errors.get(0));
+        assertSame(failure, second.errors.get(0));
+        assertNull(first.results.get(0));
+        try {
+            future.get();
+            fail("failure not propagated");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void runsOnceAcrossThreads() throws Exception {
+        final SingleFlight<String> flights = new SingleFlight<>();
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(8);
+        final Callable<String> slow = new Callable<String>() {
+            @Override
+            public String call() throws InterruptedException {
+                calls.incrementAndGet();
+                release.await();
+                return "audience";
+            }
+        };
+        final SingleFlight.Callback<String> callback = new SingleFlight.Callback<String>() {
+            @Override
+            public void onComplete(String result, Exception error) {
+                if ("audience".equals(result)) {
+                    delivered.countDown();
+                }
+            }
+        };
+        try {
+            List<Thread> callers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Thread caller = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        flights.execute("url", slow, executor, callback);
+                    }
+                });
+                callers.add(caller);
+                caller.start();
+            }
+            for (Thread caller : callers) {
+                caller.join();
+            }
+            release.countDown();
+
+            assertTrue(delivered.await(2, TimeUnit.SECONDS));
+            assertEquals(1, calls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}